@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.api;
+
+/**
+ * Turns a command line argument into a command parameter of type T.
+ *
+ * Implementations are found with java.util.ServiceLoader, listed in
+ * META-INF/services/com.superconnectors.telnet.api.Converter, and take
+ * precedence over the built-in conversions.  One instance serves all
+ * sessions concurrently, so it must be thread-safe.  It is never called
+ * for a missing argument; the parameter is null then.
+ */
+public interface Converter<T> {
+
+    Class<T> getType();
+
+    T convert(String text);
+}
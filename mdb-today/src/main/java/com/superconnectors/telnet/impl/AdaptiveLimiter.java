@@ -0,0 +1,173 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many commands run at once across all sessions, adjusting
+ * the limit to the latency it observes, after the gradient algorithm.
+ * Latency rising above the no-load latency means work is queuing up
+ * somewhere, so the limit shrinks by their ratio; while latency holds,
+ * it grows by its square root.  Calls over the limit are shed.
+ *
+ * Latencies are averaged over windows of at least {@link #WINDOW_MILLIS}
+ * and {@link #MIN_SAMPLES}; whichever call closes a window updates the
+ * limit.  The no-load latency is the lowest window average, drifting up
+ * a little each window so a lasting change in the backend is learnt.
+ * Calls in flight are one atomic count, raised only while it is below
+ * the limit, so the limit is never overshot; the sample, latency and shed
+ * counters are striped.  The limiter itself takes no lock.
+ *
+ * @version $Revision$ $Date$
+ */
+public class AdaptiveLimiter {
+
+    static final long WINDOW_MILLIS = 100;
+
+    static final int MIN_SAMPLES = 10;
+
+    private static final double SMOOTHING = 0.2;
+
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final int maxLimit;
+
+    private final AtomicInteger inflight = new AtomicInteger();
+
+    private final StripedCounter samples = new StripedCounter();
+
+    private final StripedCounter latencies = new StripedCounter();
+
+    private final StripedCounter shed = new StripedCounter();
+
+    private final AtomicLong windowStart;
+
+    private volatile double estimate;
+
+    private volatile int limit;
+
+    private volatile long noLoadNanos;
+
+    private volatile long latencyNanos;
+
+    /**
+     * @param maxLimit where the limit starts and the most it grows to
+     */
+    public AdaptiveLimiter(int maxLimit) {
+        if (maxLimit < 1) throw new IllegalArgumentException("maxLimit must be at least 1");
+
+        this.maxLimit = maxLimit;
+        this.estimate = maxLimit;
+        this.limit = maxLimit;
+        this.windowStart = new AtomicLong(nanoTime());
+    }
+
+    /**
+     * @return false, counting it as shed, if the limit is reached; true if
+     * the call may go ahead and must be followed by {@link #release}
+     */
+    public boolean acquire() {
+        int current;
+        do {
+            current = inflight.get();
+            if (current >= limit) {
+                shed.add(1);
+                return false;
+            }
+        } while (!inflight.compareAndSet(current, current + 1));
+
+        return true;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when the call was acquired
+     */
+    public void release(long startNanos) {
+        final long now = nanoTime();
+        inflight.decrementAndGet();
+        latencies.add(now - startNanos);
+        samples.add(1);
+
+        final long start = windowStart.get();
+        if (now - start >= TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS)
+                && samples.sum() >= MIN_SAMPLES
+                && windowStart.compareAndSet(start, now)) {
+            update();
+        }
+    }
+
+    /**
+     * Called by one thread at a time, the one that closed the window.
+     */
+    private void update() {
+        final long count = samples.sumThenReset();
+        final long total = latencies.sumThenReset();
+        if (count <= 0 || total <= 0) return;
+
+        final long latency = total / count;
+        latencyNanos = latency;
+
+        long noLoad = noLoadNanos;
+        noLoad = (noLoad == 0 || latency < noLoad) ? latency : noLoad + noLoad / 100;
+        noLoadNanos = noLoad;
+
+        final double current = estimate;
+        final double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, (double) noLoad / latency));
+        double next = current * gradient + Math.sqrt(current);
+
+        // Not using what it has, so latency says nothing about more
+        if (next > current && inflight.get() < current / 2) next = current;
+
+        next = current * (1 - SMOOTHING) + next * SMOOTHING;
+        next = Math.max(1, Math.min(maxLimit, next));
+
+        estimate = next;
+        limit = (int) next;
+    }
+
+    /**
+     * The clock latencies are measured with, a test's own in tests.
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInflight() {
+        return inflight.get();
+    }
+
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * @return the average latency of the last window, in milliseconds
+     */
+    public double getLatencyMillis() {
+        return latencyNanos / 1e6;
+    }
+
+    public double getNoLoadLatencyMillis() {
+        return noLoadNanos / 1e6;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops calling a command that keeps failing.  After the given number of
+ * failures in a row the breaker opens and calls fail straight away, with
+ * no endpoint, delivery or stack trace, until the open time has passed.
+ * Then one call is let through as a trial: if it succeeds the breaker
+ * closes, if it fails it opens again for another spell.
+ *
+ * A threshold of zero never opens.
+ *
+ * @version $Revision$ $Date$
+ */
+public class CircuitBreaker {
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final int threshold;
+
+    private final long openNanos;
+
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile long retryAt;
+
+    private final AtomicLong opened = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param threshold failures in a row that open the breaker, zero for
+     * never
+     * @param openMillis how long it stays open before a trial call
+     */
+    public CircuitBreaker(int threshold, long openMillis) {
+        this.threshold = threshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    public boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * @return true if the call is the trial of a half open breaker; it is
+     * passed back to whichever of {@link #success}, {@link #failure} or
+     * {@link #ignore} the call ends with
+     * @throws OpenException if the breaker is open, or half open with the
+     * trial call still running
+     */
+    public boolean acquire(String name) throws OpenException {
+        final int current = state.get();
+        if (current == CLOSED) return false;
+
+        final long wait = retryAt - System.nanoTime();
+        if (current == OPEN && wait <= 0 && state.compareAndSet(OPEN, HALF_OPEN)) return true;
+
+        rejected.incrementAndGet();
+        throw new OpenException(name + ": failing, try again in " + Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)) + " ms");
+    }
+
+    public void success(boolean trial) {
+        if (threshold <= 0) return;
+
+        failures.set(0);
+        if (trial) state.set(CLOSED);
+    }
+
+    public void failure(boolean trial) {
+        if (threshold <= 0) return;
+
+        if (trial) {
+            open(HALF_OPEN);
+        } else if (state.get() == CLOSED && failures.incrementAndGet() >= threshold) {
+            open(CLOSED);
+        }
+    }
+
+    /**
+     * For a call that says nothing about the command, like one with an
+     * argument that could not be converted.  A trial call hands the trial
+     * on to the next.
+     */
+    public void ignore(boolean trial) {
+        if (trial) state.set(OPEN);
+    }
+
+    private void open(int from) {
+        retryAt = System.nanoTime() + openNanos;
+        if (state.compareAndSet(from, OPEN)) {
+            failures.set(0);
+            opened.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return closed, open or half-open
+     */
+    public String getState() {
+        switch (state.get()) {
+            case OPEN:
+                return "open";
+            case HALF_OPEN:
+                return "half-open";
+            default:
+                return "closed";
+        }
+    }
+
+    public long getOpened() {
+        return opened.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Answered to the client as is, so it carries no stack trace.
+     */
+    public static class OpenException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs bean commands on a fixed number of worker threads so the thread
+ * reading a session is free to go on reading, answering telnet option
+ * negotiation and Interrupt Process while a command runs.
+ *
+ * Commands wait in one priority queue; when every worker is busy, the
+ * highest priority command runs next and equal priorities run in the
+ * order they came.  The commands of one session still run one at a time
+ * and in order, through its {@link Queue}, as they share the session's
+ * endpoint.
+ *
+ * Workers are started on the executor as commands arrive, up to the
+ * limit, and give their thread back after they have been idle a while.
+ *
+ * @version $Revision$ $Date$
+ */
+public class CommandScheduler {
+
+    public static final int LOW = 0;
+    public static final int NORMAL = 1;
+    public static final int HIGH = 2;
+
+    private static final long KEEP_ALIVE_MILLIS = 5000;
+
+    private final int threads;
+
+    private final Executor executor;
+
+    private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<Entry>();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger workers = new AtomicInteger();
+
+    private final AtomicLong executed = new AtomicLong();
+
+    /**
+     * @param executor runs the workers, typically backed by the
+     * container's WorkManager
+     */
+    public CommandScheduler(int threads, Executor executor) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+
+        this.threads = threads;
+        this.executor = executor;
+    }
+
+    /**
+     * @return a queue running the commands of one session in order
+     */
+    public Queue newQueue() {
+        return new Queue();
+    }
+
+    private void execute(Runnable task, int priority) {
+        queue.add(new Entry(task, priority, sequence.getAndIncrement()));
+
+        int n;
+        while ((n = workers.get()) < threads) {
+            if (!workers.compareAndSet(n, n + 1)) continue;
+
+            try {
+                executor.execute(new Worker());
+            } catch (RejectedExecutionException e) {
+                // No thread to be had, run it here rather than strand it
+                workers.decrementAndGet();
+                final Entry entry = queue.poll();
+                if (entry != null) entry.run();
+            }
+            return;
+        }
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public int getWorkers() {
+        return workers.get();
+    }
+
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Entry entry;
+                try {
+                    entry = queue.poll(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    entry = queue.poll();
+                }
+
+                if (entry == null) {
+                    workers.decrementAndGet();
+
+                    // A command may have come in as this worker gave up
+                    if (queue.isEmpty()) return;
+
+                    int n;
+                    do {
+                        if ((n = workers.get()) >= threads) return;
+                    } while (!workers.compareAndSet(n, n + 1));
+                    continue;
+                }
+
+                entry.run();
+
+                // Deadlines clear their own interrupt, anything else
+                // must not carry over to the next command
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private class Entry implements Comparable<Entry> {
+
+        private final Runnable task;
+
+        private final int priority;
+
+        private final long sequence;
+
+        private Entry(Runnable task, int priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        private void run() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                executed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) return (priority > other.priority) ? -1 : 1;
+            return (sequence < other.sequence) ? -1 : (sequence == other.sequence) ? 0 : 1;
+        }
+    }
+
+    /**
+     * The commands of one session.  Only the first waiting one is in the
+     * scheduler's queue, at its own priority; the next goes in once it has
+     * finished.
+     */
+    public class Queue {
+
+        private final ArrayDeque<Entry> tasks = new ArrayDeque<Entry>();
+
+        private final List<Runnable> idle = new ArrayList<Runnable>();
+
+        private boolean active;
+
+        private boolean closed;
+
+        private Queue() {
+        }
+
+        /**
+         * @throws RejectedExecutionException once the queue is closed
+         */
+        public void execute(Runnable task, int priority) {
+            synchronized (this) {
+                if (closed) throw new RejectedExecutionException("session closed");
+
+                tasks.addLast(new Entry(task, priority, 0));
+                if (active) return;
+                active = true;
+            }
+
+            next();
+        }
+
+        /**
+         * Takes no more commands and runs the callback once those already
+         * queued have all finished, straight away if none are left.  May be
+         * called more than once.
+         */
+        public void close(Runnable then) {
+            synchronized (this) {
+                closed = true;
+                if (active) {
+                    idle.add(then);
+                    return;
+                }
+            }
+
+            then.run();
+        }
+
+        private void next() {
+            final Entry entry;
+            synchronized (this) {
+                entry = tasks.peekFirst();
+            }
+
+            CommandScheduler.this.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        entry.task.run();
+                    } finally {
+                        done();
+                    }
+                }
+            }, entry.priority);
+        }
+
+        private void done() {
+            final List<Runnable> callbacks;
+            synchronized (this) {
+                tasks.pollFirst();
+                if (!tasks.isEmpty()) {
+                    callbacks = null;
+                } else {
+                    active = false;
+                    callbacks = new ArrayList<Runnable>(idle);
+                    idle.clear();
+                }
+            }
+
+            if (callbacks == null) {
+                next();
+                return;
+            }
+
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+}
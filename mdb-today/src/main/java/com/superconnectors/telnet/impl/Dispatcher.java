@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+
+/**
+ * Command table of one bean, generated at build time next to the bean as
+ * {@code <Bean>$$TelnetDispatcher} by the CommandProcessor.  It looks up
+ * commands with a switch, converts the arguments with handles resolved
+ * in its constructor and calls the bean methods directly.
+ *
+ * Implementations have a public constructor taking the {@link Converters}.
+ *
+ * @version $Revision$ $Date$
+ */
+public interface Dispatcher {
+
+    String SUFFIX = "$$TelnetDispatcher";
+
+    /**
+     * @return the @Prompt of the bean, or null
+     */
+    String getPrompt();
+
+    String[] getCommands();
+
+    /**
+     * @return null for an unknown command
+     */
+    String getUsage(String command);
+
+    /**
+     * @return every @Command attribute of the command, defaults included,
+     * keyed by attribute name
+     */
+    Map<String, Object> getAttributes(String command);
+
+    Object dispatch(Object bean, String command, String[] args) throws Throwable;
+
+    /**
+     * Only needed for MessageEndpoint.beforeDelivery, so it is resolved
+     * on first use rather than at activation.
+     */
+    Method getMethod(String command) throws NoSuchMethodException;
+}
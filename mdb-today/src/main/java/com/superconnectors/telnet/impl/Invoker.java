@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Calls a command method with the arguments typed on the command line.
+ *
+ * {@link #compile} turns the method into a MethodHandle once, when the
+ * activation spec is validated, with the converter of every parameter
+ * folded in front of it.  The resulting handle takes the argument Strings
+ * directly, so primitives are parsed straight into the call without
+ * boxing.  Commands of up to three parameters are called through
+ * invokeExact with one argument per parameter, so no Object[] is
+ * allocated per call and exceptions arrive unwrapped; longer ones go
+ * through a spreader.  {@link #reflective} is the Method.invoke path,
+ * kept for methods a handle can't be made for.
+ *
+ * @version $Revision$ $Date$
+ */
+public abstract class Invoker {
+
+    private final int arity;
+
+    protected Invoker(Method method) {
+        this.arity = method.getParameterTypes().length;
+    }
+
+    public abstract Object invoke(Object target, String[] args) throws Throwable;
+
+    /**
+     * @return the argument for the parameter, null if it was not given
+     */
+    protected static String arg(int index, String[] args) {
+        return (index < args.length) ? args[index] : null;
+    }
+
+    /**
+     * @return exactly one argument per parameter
+     */
+    protected final String[] args(String[] args) {
+        return (args.length == arity) ? args : Arrays.copyOf(args, arity);
+    }
+
+    public static Invoker compile(Method method, Converters converters) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            return reflective(method, converters);
+        }
+
+        final Class<?>[] types = method.getParameterTypes();
+        final int arity = types.length;
+
+        for (int i = 0; i < arity; i++) {
+            handle = MethodHandles.filterArguments(handle, i + 1, converters.find(types[i]));
+        }
+
+        // (Object target, String... args) Object, whatever the real types
+        MethodType type = MethodType.genericMethodType(arity + 1);
+        for (int i = 0; i < arity; i++) {
+            type = type.changeParameterType(i + 1, String.class);
+        }
+        final MethodHandle generic = handle.asType(type);
+
+        switch (arity) {
+            case 0:
+                return new Invoker(method) {
+                    @Override
+                    public Object invoke(Object target, String[] args) throws Throwable {
+                        return (Object) generic.invokeExact(target);
+                    }
+                };
+            case 1:
+                return new Invoker(method) {
+                    @Override
+                    public Object invoke(Object target, String[] args) throws Throwable {
+                        return (Object) generic.invokeExact(target, arg(0, args));
+                    }
+                };
+            case 2:
+                return new Invoker(method) {
+                    @Override
+                    public Object invoke(Object target, String[] args) throws Throwable {
+                        return (Object) generic.invokeExact(target, arg(0, args), arg(1, args));
+                    }
+                };
+            case 3:
+                return new Invoker(method) {
+                    @Override
+                    public Object invoke(Object target, String[] args) throws Throwable {
+                        return (Object) generic.invokeExact(target, arg(0, args), arg(1, args), arg(2, args));
+                    }
+                };
+            default:
+                final MethodHandle spreader = generic.asSpreader(String[].class, arity);
+                return new Invoker(method) {
+                    @Override
+                    public Object invoke(Object target, String[] args) throws Throwable {
+                        return (Object) spreader.invokeExact(target, args(args));
+                    }
+                };
+        }
+    }
+
+    public static Invoker reflective(final Method method, Converters converters) {
+        final Class<?>[] types = method.getParameterTypes();
+        final MethodHandle[] converter = new MethodHandle[types.length];
+        for (int i = 0; i < types.length; i++) {
+            converter[i] = converters.find(types[i]).asType(MethodType.methodType(Object.class, String.class));
+        }
+
+        return new Invoker(method) {
+            @Override
+            public Object invoke(Object target, String[] args) throws Throwable {
+                final Object[] params = new Object[converter.length];
+                for (int i = 0; i < params.length; i++) {
+                    final String arg = arg(i, args);
+                    params[i] = (arg == null) ? null : (Object) converter[i].invokeExact(arg);
+                }
+
+                try {
+                    return method.invoke(target, params);
+                } catch (InvocationTargetException e) {
+                    throw e.getTargetException();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Assembles telnet input into lines inside one reusable buffer.
+ *
+ * A line ends at CR LF, CR NUL, a bare CR or a bare LF.  The line is
+ * exposed as a {@link CharSequence} over the buffer and is only valid until
+ * the next line is decoded.  Lines longer than maxLineLength are dropped up
+ * to their end of line and reported with a {@link LineTooLongException},
+ * so a client can't grow the buffer beyond that limit.
+ *
+ * @version $Revision$ $Date$
+ */
+public class LineDecoder implements CharSequence {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private final int maxLineLength;
+
+    private byte[] line = new byte[128];
+
+    private int length;
+
+    private boolean complete;
+
+    private boolean carriageReturn;
+
+    private boolean overflow;
+
+    private ByteBuffer input;
+
+    public LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Consumes bytes from the buffer up to and including the next end of
+     * line.  Bytes after it are left in the buffer for the next call.
+     *
+     * @return true if a complete line is now available
+     */
+    public boolean decode(ByteBuffer buffer) throws LineTooLongException {
+        if (complete) {
+            complete = false;
+            length = 0;
+        }
+
+        final byte[] b = buffer.array();
+        final int end = buffer.arrayOffset() + buffer.limit();
+        int i = buffer.arrayOffset() + buffer.position();
+
+        if (carriageReturn && i < end) {
+            carriageReturn = false;
+            if (b[i] == '\n' || b[i] == 0) i++;
+        }
+
+        final int start = i;
+        while (i < end && b[i] != '\r' && b[i] != '\n') i++;
+
+        append(b, start, i - start);
+
+        if (i == end) {
+            buffer.position(i - buffer.arrayOffset());
+            return false;
+        }
+
+        carriageReturn = b[i] == '\r';
+        buffer.position(i + 1 - buffer.arrayOffset());
+
+        if (overflow) {
+            overflow = false;
+            length = 0;
+            throw new LineTooLongException(maxLineLength);
+        }
+
+        complete = true;
+        return true;
+    }
+
+    /**
+     * Blocking variant of {@link #decode(ByteBuffer)} that reads the stream
+     * in blocks until a line is complete.  A last line the stream ends
+     * without an end of line is returned as is.
+     *
+     * @return null at end of stream
+     */
+    public CharSequence readLine(InputStream in) throws IOException {
+        if (input == null) {
+            input = ByteBuffer.allocate(1024);
+            input.limit(0);
+        }
+
+        while (!decode(input)) {
+            final int n = in.read(input.array(), 0, input.capacity());
+            if (n < 0) return finish();
+
+            input.position(0);
+            input.limit(n);
+        }
+
+        return this;
+    }
+
+    private CharSequence finish() throws LineTooLongException {
+        carriageReturn = false;
+
+        if (overflow) {
+            overflow = false;
+            length = 0;
+            throw new LineTooLongException(maxLineLength);
+        }
+
+        if (length == 0) return null;
+
+        complete = true;
+        return this;
+    }
+
+    /**
+     * Whether the bytes {@link #readLine} has read ahead already hold
+     * another complete line, so it can be returned without blocking.
+     */
+    public boolean hasLine() {
+        if (input == null) return false;
+
+        final byte[] b = input.array();
+        int i = input.position();
+        final int end = input.limit();
+
+        // The LF of a CR LF split from its line doesn't end another one
+        if (carriageReturn && i < end && (b[i] == '\n' || b[i] == 0)) i++;
+
+        for (; i < end; i++) {
+            if (b[i] == '\r' || b[i] == '\n') return true;
+        }
+        return false;
+    }
+
+    /**
+     * As {@link #hasLine()}, also taking in what the stream has at hand
+     * without blocking, so a line the client sent beyond the read-ahead
+     * is found too.  The line last returned is no longer valid afterwards.
+     */
+    public boolean hasLine(InputStream in) throws IOException {
+        if (input == null) return false;
+
+        while (!hasLine()) {
+            final int available = in.available();
+            if (available <= 0) return false;
+
+            // No end of line in there, it is all the start of the next one
+            decode(input);
+
+            final int n = in.read(input.array(), 0, Math.min(available, input.capacity()));
+            if (n < 0) return true;
+
+            input.position(0);
+            input.limit(n);
+        }
+        return true;
+    }
+
+    private void append(byte[] b, int off, int len) {
+        if (overflow || len == 0) return;
+
+        if (length + len > maxLineLength) {
+            overflow = true;
+            return;
+        }
+
+        if (length + len > line.length) {
+            final byte[] bigger = new byte[Math.min(maxLineLength, Math.max(line.length * 2, length + len))];
+            System.arraycopy(line, 0, bigger, 0, length);
+            line = bigger;
+        }
+
+        System.arraycopy(b, off, line, length, len);
+        length += len;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+        return (char) (line[index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) throw new IndexOutOfBoundsException(start + ", " + end);
+        return new String(line, start, end - start, LATIN1);
+    }
+
+    @Override
+    public String toString() {
+        return new String(line, 0, length, LATIN1);
+    }
+
+    public static class LineTooLongException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException(int maxLineLength) {
+            super("line too long, limit is " + maxLineLength + " characters");
+        }
+    }
+}
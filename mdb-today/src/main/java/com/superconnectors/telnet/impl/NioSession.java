@@ -0,0 +1,346 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import com.superconnectors.telnet.api.TelnetListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * One telnet connection driven by a {@link NioServer} selector thread.
+ *
+ * Each buffer read from the channel goes through the {@link TelnetCodec}
+ * first, the {@link LineDecoder} assembles the remaining bytes into lines
+ * and every complete line is handed to {@link TelnetServer#dispatch}.
+ * Output is collected in memory and written whenever the channel accepts
+ * it.
+ *
+ * Unless the server has command threads, commands run on the selector
+ * thread, so an Interrupt Process sent while one is running is only read
+ * once it returns; its deadline still stops it in time.
+ *
+ * While the session has as many asynchronous commands in flight as it
+ * may, the lines already read wait in the buffer and the channel is not
+ * read, the way output waits for the channel to accept it.
+ *
+ * @version $Revision$ $Date$
+ */
+class NioSession implements TelnetCodes {
+
+    private final TelnetServer server;
+
+    private final SocketChannel channel;
+
+    private final TelnetListener endpoint;
+
+    private final SelectionKey key;
+
+    private final ByteBuffer input = ByteBuffer.allocate(1024);
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    private final PrintStream out = new TelnetPrintStream(output);
+
+    private final LinkedList<ByteBuffer> writes = new LinkedList<ByteBuffer>();
+
+    private final TelnetCodec codec;
+
+    private final LineDecoder lines;
+
+    private final SessionContext session;
+
+    private final boolean pipelined;
+
+    private final SessionTimeout timeout;
+
+    private final Executor ioThread;
+
+    private boolean closing;
+
+    private boolean paused;
+
+    /**
+     * Pipelined, a line ran since the last prompt
+     */
+    private boolean executed;
+
+    private boolean draining;
+
+    private boolean drained;
+
+    private boolean closed;
+
+    /**
+     * @param endpoint the bean instance serving this session only
+     * @param ioThread runs tasks on the thread that owns the selector
+     */
+    public NioSession(TelnetServer server, SocketChannel channel, TelnetListener endpoint, Selector selector, final Executor ioThread) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.endpoint = endpoint;
+        this.ioThread = ioThread;
+        this.session = new SessionContext(endpoint, new ResponseSequencer(server.getSpec().getMaxOutstanding(), server.getExecutor(), server.getTimingWheel(), ioThread) {
+            @Override
+            protected void freed() {
+                if (!paused || closed) return;
+
+                paused = false;
+                try {
+                    NioSession.this.consume();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+
+            @Override
+            protected void deliver(byte[] response) {
+                if (closed) return;
+
+                output.write(response, 0, response.length);
+                enqueue();
+                try {
+                    NioSession.this.write();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }, server.getTimingWheel(), server.getSpec().getCommandTimeoutMillis());
+        this.codec = new TelnetCodec(output, new Runnable() {
+            @Override
+            public void run() {
+                session.interrupt();
+            }
+        });
+        this.session.setRemoteAddress(channel.socket().getInetAddress().getHostAddress());
+        if (server.getScheduler() != null) session.setQueue(server.getScheduler().newQueue());
+        this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        this.lines = new LineDecoder(server.getSpec().getMaxLineLength());
+        this.pipelined = server.getSpec().isPipelined();
+
+        if (server.getSpec().getIdleTimeoutMillis() > 0 || server.getSpec().getMaxLifetimeMillis() > 0) {
+            this.timeout = new SessionTimeout(server.getTimingWheel(), server.getSpec().getIdleTimeoutMillis(), server.getSpec().getMaxLifetimeMillis()) {
+                @Override
+                protected void expired() {
+                    ioThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            goodbye(getReason());
+                        }
+                    });
+                }
+
+                @Override
+                protected void abort() {
+                    ioThread.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            close();
+                        }
+                    });
+                }
+            };
+            this.timeout.start();
+        } else {
+            this.timeout = null;
+        }
+
+        codec.negotiateOption(DONT, 1);
+        codec.negotiateOption(DONT, 6);
+        codec.negotiateOption(DONT, 24);
+        codec.negotiateOption(DONT, 33);
+        codec.negotiateOption(DONT, 34);
+
+        out.println("");
+        out.println("type \'help\' for a list of commands");
+        prompt();
+
+        write();
+    }
+
+    public void read() throws IOException {
+        if (channel.read(input) < 0) {
+            close();
+            return;
+        }
+
+        input.flip();
+        codec.decode(input);
+        consume();
+    }
+
+    /**
+     * Runs the complete lines in the input, stopping short while no
+     * further asynchronous command may start.
+     */
+    private void consume() throws IOException {
+        while (!closing && input.hasRemaining()) {
+            if (session.getResponses().isFull()) {
+                paused = true;
+                break;
+            }
+
+            try {
+                if (lines.decode(input)) {
+                    execute(lines);
+                    executed = true;
+                }
+            } catch (LineDecoder.LineTooLongException e) {
+                session.getResponses().println(Failures.describe(e), out);
+                if (!pipelined) prompt();
+                executed = true;
+            }
+        }
+        if (!paused) input.clear();
+
+        // Pipelined, the commands of one read share a single prompt
+        if (pipelined && executed && !paused && !closing) {
+            executed = false;
+            prompt();
+        }
+
+        if (output.size() > 0) enqueue();
+        write();
+    }
+
+    /**
+     * Hands every queued buffer to the channel in one gathering write.
+     */
+    public void write() throws IOException {
+        if (!writes.isEmpty()) {
+            channel.write(writes.toArray(new ByteBuffer[writes.size()]));
+
+            while (!writes.isEmpty() && !writes.getFirst().hasRemaining()) {
+                writes.removeFirst();
+            }
+
+            if (!writes.isEmpty()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        if (closing) {
+            if (drained || session.getQueue() == null) {
+                close();
+            } else {
+                drain();
+            }
+        } else {
+            key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        if (timeout != null) timeout.cancel();
+
+        // A command still running keeps the endpoint until it is done
+        final Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                server.getEndpoints().release(endpoint);
+                server.getAdmission().release();
+            }
+        };
+        if (session.getQueue() != null) {
+            session.getQueue().close(release);
+        } else {
+            release.run();
+        }
+
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Lets the commands still queued write their responses before the
+     * session closes.
+     */
+    private void drain() {
+        if (draining) return;
+        draining = true;
+
+        session.getQueue().close(new Runnable() {
+            @Override
+            public void run() {
+                ioThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drained = true;
+                        try {
+                            write();
+                        } catch (IOException e) {
+                            close();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void enqueue() {
+        writes.add(ByteBuffer.wrap(output.toByteArray()));
+        output.reset();
+    }
+
+    /**
+     * Queues whatever the last command printed followed by the shared,
+     * pre-encoded prompt.  A response still pending goes out first, the
+     * prompt is sequenced after it.
+     */
+    private void prompt() {
+        session.getResponses().writeEncoded(server.getPromptBytes(), out);
+        if (output.size() > 0) enqueue();
+    }
+
+    private void execute(CharSequence commandline) {
+        if (timeout != null) timeout.begin();
+        try {
+            server.dispatch(commandline, session, out);
+            if (!pipelined) prompt();
+        } catch (TelnetServer.StopException e) {
+            closing = true;
+        } finally {
+            if (timeout != null) timeout.end();
+        }
+    }
+
+    private void goodbye(String reason) {
+        if (closed || closing) return;
+
+        closing = true;
+        out.println(reason);
+        enqueue();
+        try {
+            write();
+        } catch (IOException e) {
+            close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+
+/**
+ * SO_REUSEPORT lets several listening sockets bind the same port, with the
+ * kernel balancing new connections across them.  The option only exists
+ * as of Java 9 and only on some platforms (Linux, BSD), so everything is
+ * looked up reflectively.
+ *
+ * @version $Revision$ $Date$
+ */
+final class ReusePort {
+
+    private static final Object OPTION = lookup();
+
+    private ReusePort() {
+    }
+
+    static boolean isSupported() {
+        return OPTION != null;
+    }
+
+    /**
+     * Must be called before the socket is bound.
+     */
+    static void enable(ServerSocket socket) throws IOException {
+        setOption(ServerSocket.class, socket);
+    }
+
+    /**
+     * Must be called before the channel is bound.
+     */
+    static void enable(ServerSocketChannel channel) throws IOException {
+        setOption(ServerSocketChannel.class, channel);
+    }
+
+    private static void setOption(Class<?> type, Object target) throws IOException {
+        try {
+            final Method setOption = type.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+            setOption.invoke(target, OPTION, Boolean.TRUE);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Cannot enable SO_REUSEPORT", e.getCause());
+        } catch (Exception e) {
+            throw new IOException("Cannot enable SO_REUSEPORT", e);
+        }
+    }
+
+    private static Object lookup() {
+        try {
+            final Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+
+            final ServerSocket socket = new ServerSocket();
+            try {
+                final Set<?> supported = (Set<?>) ServerSocket.class.getMethod("supportedOptions").invoke(socket);
+                return supported.contains(option) ? option : null;
+            } finally {
+                socket.close();
+            }
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
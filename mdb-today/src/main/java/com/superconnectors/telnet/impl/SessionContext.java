@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import com.superconnectors.telnet.api.TelnetListener;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * What one session carries from command to command: its endpoint, its
+ * reusable tokenizer, the order of its responses and the batch being
+ * queued, if any.  The tokenizer and the batch are only touched by the
+ * thread reading the session; the rest may also be used by the threads
+ * running its commands.
+ *
+ * @version $Revision$ $Date$
+ */
+public class SessionContext {
+
+    private final TelnetListener endpoint;
+
+    private final Tokenizer tokens = new Tokenizer();
+
+    private final ResponseSequencer responses;
+
+    private final TimingWheel wheel;
+
+    private final long timeoutMillis;
+
+    private final Set<Deadline> running = Collections.newSetFromMap(new ConcurrentHashMap<Deadline, Boolean>());
+
+    private volatile Runnable poll;
+
+    private volatile Executor poller;
+
+    private volatile CommandScheduler.Queue queue;
+
+    private String remoteAddress = "";
+
+    private Batch batch;
+
+    /**
+     * @param endpoint the bean instance serving this session only
+     */
+    public SessionContext(TelnetListener endpoint, ResponseSequencer responses) {
+        this(endpoint, responses, null, 0);
+    }
+
+    /**
+     * @param wheel times the commands, null to run them without deadlines
+     * @param timeoutMillis for commands without a timeoutMillis of their
+     * own, zero for no limit
+     */
+    public SessionContext(TelnetListener endpoint, ResponseSequencer responses, TimingWheel wheel, long timeoutMillis) {
+        this.endpoint = endpoint;
+        this.responses = responses;
+        this.wheel = wheel;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public TelnetListener getEndpoint() {
+        return endpoint;
+    }
+
+    public Tokenizer getTokens() {
+        return tokens;
+    }
+
+    public ResponseSequencer getResponses() {
+        return responses;
+    }
+
+    /**
+     * @return the open batch, or null outside begin and commit
+     */
+    public Batch getBatch() {
+        return batch;
+    }
+
+    public void setBatch(Batch batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Run while a command holds the session's thread, to read input that
+     * arrives meanwhile.  The timing wheel hands it to the poller, never
+     * running it on its own thread.
+     */
+    public void setPoll(Runnable poll, Executor poller) {
+        this.poller = poller;
+        this.poll = poll;
+    }
+
+    /**
+     * The client's IP address, which its rate limits are kept under.
+     */
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public void setRemoteAddress(String remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * @return null when commands run on the session's own thread
+     */
+    public CommandScheduler.Queue getQueue() {
+        return queue;
+    }
+
+    public void setQueue(CommandScheduler.Queue queue) {
+        this.queue = queue;
+    }
+
+    /**
+     * A new deadline for one run of the command, to be started by whoever
+     * runs it.
+     *
+     * @return null if the session has no timing wheel
+     */
+    public Deadline deadline(Cmd cmd) {
+        if (wheel == null) return null;
+
+        final long millis = cmd.getSettings().getTimeoutMillis();
+        return new Deadline(cmd.getName(), (millis > 0) ? millis : timeoutMillis, wheel, poll, poller, running);
+    }
+
+    /**
+     * Stops every command of the session that is still running, for a
+     * telnet Interrupt Process.  Safe to call from any thread.
+     *
+     * @return the number of commands stopped
+     */
+    public int interrupt() {
+        int stopped = 0;
+        for (Deadline deadline : running) {
+            if (deadline.cancel()) stopped++;
+        }
+        return stopped;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.io.Closeable;
+
+/**
+ * A long running task, like an accept or session loop, that can be told
+ * to stop from another thread, as a container does through
+ * Work.release().  Closing it makes run() return soon after.
+ *
+ * @version $Revision$ $Date$
+ */
+public interface StoppableTask extends Runnable, Closeable {
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over cells on separate cache lines, so threads adding
+ * to it at once rarely touch the same one.  Each thread keeps to the cell
+ * its id hashes to.  A sum read while others add is only approximate.
+ *
+ * @version $Revision$ $Date$
+ */
+public class StripedCounter {
+
+    /**
+     * Longs per 64 byte cache line
+     */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+
+    private final int mask;
+
+    public StripedCounter() {
+        int size = 1;
+        while (size < Runtime.getRuntime().availableProcessors() * 2) size <<= 1;
+
+        this.cells = new AtomicLongArray(size * PAD);
+        this.mask = size - 1;
+    }
+
+    public void add(long x) {
+        cells.getAndAdd(index(), x);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    /**
+     * Sums and clears the cells one at a time; what is added meanwhile
+     * goes either into this sum or into the next.
+     */
+    public long sumThenReset() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.getAndSet(i, 0);
+        }
+        return sum;
+    }
+
+    private int index() {
+        final long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & mask) * PAD;
+    }
+}
@@ -21,172 +21,120 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+/**
+ * Reads from the socket in blocks and lets {@link TelnetCodec} strip the
+ * telnet commands out of each block in place.  Single byte reads are
+ * served from that block rather than going to the socket every time.
+ */
 public class TelnetInputStream extends FilterInputStream implements TelnetCodes {
 
-    private TelnetOption[] options = new TelnetOption[256];
+    private final TelnetCodec codec;
+
+    private final byte[] buffer = new byte[1024];
+
+    private int position;
 
-    private OutputStream out = null;
+    private int limit;
 
     public TelnetInputStream(InputStream in, OutputStream out) throws IOException {
+        this(in, out, null);
+    }
+
+    /**
+     * @param interrupt run for each telnet Interrupt Process, may be null
+     */
+    public TelnetInputStream(InputStream in, OutputStream out, Runnable interrupt) throws IOException {
         super(in);
-        this.out = out;
-        negotiateOption(DONT, 1);
-        negotiateOption(DONT, 6);
-        negotiateOption(DONT, 24);
-        negotiateOption(DONT, 33);
-        negotiateOption(DONT, 34);
+        this.codec = new TelnetCodec(out, interrupt);
+        codec.negotiateOption(DONT, 1);
+        codec.negotiateOption(DONT, 6);
+        codec.negotiateOption(DONT, 24);
+        codec.negotiateOption(DONT, 33);
+        codec.negotiateOption(DONT, 34);
     }
 
     public int read() throws IOException {
-        int b = super.read();
+        if (position == limit && fill() < 0) return -1;
 
-        if (b == IAC) {
+        return buffer[position++] & 0xFF;
+    }
 
-            processCommand();
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
 
-            b = this.read();
+        if (position < limit) {
+            final int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
         }
 
-        return b;
-    }
+        // Decode straight into the caller's array
+        while (true) {
+            final int n = in.read(b, off, len);
+            if (n < 0) return -1;
 
-    private void processCommand() throws IOException {
-
-        print("C: IAC ");
-
-        int command = super.read();
-
-        switch (command) {
-            case WILL:
-                senderWillEnableOption(super.read());
-                break;
-            case DO:
-                pleaseDoEnableOption(super.read());
-                break;
-            case WONT:
-                senderWontEnableOption(super.read());
-                break;
-            case DONT:
-                pleaseDontEnableOption(super.read());
-                break;
-            default:
-                unimplementedCommand(command);
-                break;
+            final int data = codec.decode(b, off, n);
+            if (data > 0) return data;
         }
-
-    }
-
-    private void unimplementedCommand(int command) {
-        println(command + ": command not found");
     }
 
-    private void senderWillEnableOption(int optionID) throws IOException {
-
-        println("WILL " + optionID);
-        TelnetOption option = getOption(optionID);
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (position == limit && fill() < 0) break;
 
-        if (option.hasBeenNegotiated()) return;
-
-        if (option.isInNegotiation()) {
-            option.enable();
-        } else if (!option.isInNegotiation() && option.isSupported()) {
-            negotiateOption(DO, optionID);
-            option.enable();
-        } else if (!option.isInNegotiation() && !option.isSupported()) {
-            negotiateOption(DONT, optionID);
-            option.disable();
+            final int step = (int) Math.min(n - skipped, limit - position);
+            position += step;
+            skipped += step;
         }
+        return skipped;
     }
 
-    private void pleaseDoEnableOption(int optionID) throws IOException {
-
-        println("DO " + optionID);
-        TelnetOption option = getOption(optionID);
-
-        if (option.hasBeenNegotiated()) return;
-
-        if (option.isInNegotiation()) {
-            option.enable();
-        } else if (!option.isInNegotiation() && option.isSupported()) {
-            negotiateOption(WILL, optionID);
-            option.enable();
-        } else if (!option.isInNegotiation() && !option.isSupported()) {
-            negotiateOption(WONT, optionID);
-            option.disable();
-        }
+    /**
+     * Counts the data read ahead.  With none left, whatever has arrived
+     * is taken in first, so the telnet commands in it are not counted.
+     */
+    public int available() throws IOException {
+        if (position == limit) poll();
+        return limit - position;
     }
 
-    private void senderWontEnableOption(int optionID) throws IOException {
-        println("WONT " + optionID);
-        TelnetOption option = getOption(optionID);
-
-        if (option.hasBeenNegotiated()) return;
-
-        if (!option.isInNegotiation()) {
-            negotiateOption(DONT, optionID);
-        }
-        option.disable();
+    public boolean markSupported() {
+        return false;
     }
 
-    private void pleaseDontEnableOption(int optionID) throws IOException {
-
-        println("DONT " + optionID);
-
-        TelnetOption option = getOption(optionID);
-
-        if (option.hasBeenNegotiated()) return;
-
-        if (!option.isInNegotiation()) {
-            negotiateOption(WONT, optionID);
+    /**
+     * Takes in whatever has already arrived, without blocking, so telnet
+     * commands sent while the session is busy running a command are seen
+     * straight away.  The data is kept for the next read.  Must not be
+     * called while another thread reads this stream.
+     */
+    public void poll() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
         }
-        option.disable();
-    }
-
-    private void println(String s) {
-
-    }
 
-    private void print(String s) {
+        final int n = Math.min(in.available(), buffer.length - limit);
+        if (n <= 0) return;
 
+        final int read = in.read(buffer, limit, n);
+        if (read > 0) limit += codec.decode(buffer, limit, read);
     }
 
-    private void negotiateOption(int negotiate, int optionID)
-            throws IOException {
-        TelnetOption option = getOption(optionID);
-        option.inNegotiation = true;
-
-        String n = null;
-        switch (negotiate) {
-            case WILL:
-                n = "WILL ";
-                break;
-            case DO:
-                n = "DO ";
-                break;
-            case WONT:
-                n = "WONT ";
-                break;
-            case DONT:
-                n = "DONT ";
-                break;
-        }
+    private int fill() throws IOException {
+        position = 0;
+        limit = 0;
 
-        println("S: IAC " + n + optionID);
+        while (limit == 0) {
+            final int n = in.read(buffer, 0, buffer.length);
+            if (n < 0) return -1;
 
-        synchronized (out) {
-            out.write(IAC);
-            out.write(negotiate);
-            out.write(optionID);
+            limit = codec.decode(buffer, 0, n);
         }
-    }
 
-    private TelnetOption getOption(int optionID) {
-        TelnetOption opt = options[optionID];
-        if (opt == null) {
-            opt = new TelnetOption(optionID);
-            options[optionID] = opt;
-        }
-        return opt;
+        return limit;
     }
-
 }
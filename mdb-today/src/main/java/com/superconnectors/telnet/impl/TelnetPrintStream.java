@@ -16,77 +16,253 @@
  */
 package com.superconnectors.telnet.impl;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Guards writes with a {@link ReentrantLock} rather than the monitor
+ * {@link PrintStream} uses so a session blocked writing to its socket
+ * does not pin the carrier of a virtual thread.  Everything funnels
+ * through {@link #write(byte[], int, int)} for that reason.
+ */
 public class TelnetPrintStream extends PrintStream {
 
     private final byte[] CRLF = new byte[]{(byte) '\r', (byte) '\n'};
 
+    private final ReentrantLock lock = new ReentrantLock();
+
     public TelnetPrintStream(OutputStream out) {
         super(out);
     }
 
+    @Override
+    public void write(int b) {
+        lock.lock();
+        try {
+            out.write(b);
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            setError();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) {
+        lock.lock();
+        try {
+            out.write(buf, off, len);
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            setError();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() {
+        lock.lock();
+        try {
+            out.flush();
+        } catch (IOException e) {
+            setError();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void print(String s) {
+        if (s == null) s = "null";
+        final byte[] bytes = s.getBytes();
+        write(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void print(Object obj) {
+        print(String.valueOf(obj));
+    }
+
+    @Override
+    public void print(char[] s) {
+        print(new String(s));
+    }
+
+    @Override
+    public void print(char c) {
+        print(String.valueOf(c));
+    }
+
+    @Override
+    public void print(boolean b) {
+        print(String.valueOf(b));
+    }
+
+    @Override
+    public void print(int i) {
+        print(String.valueOf(i));
+    }
+
+    @Override
+    public void print(long l) {
+        print(String.valueOf(l));
+    }
+
+    @Override
+    public void print(float f) {
+        print(String.valueOf(f));
+    }
+
+    @Override
+    public void print(double d) {
+        print(String.valueOf(d));
+    }
+
     public void println() {
         newLine();
     }
 
     public void println(String x) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void println(Object x) {
+        lock.lock();
+        try {
+            print(x);
+            newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void println(long x) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void println(char x) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void println(boolean x) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void println(float x) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void println(double x) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void println(int x) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
     public void println(char x[]) {
-        synchronized (this) {
+        lock.lock();
+        try {
             print(x);
             newLine();
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Formatted up front and written in one go, rather than piecemeal
+     * under the monitor as {@link PrintStream#format} does.
+     */
+    @Override
+    public PrintStream format(String format, Object... args) {
+        print(String.format(format, args));
+        return this;
+    }
+
+    @Override
+    public PrintStream format(Locale l, String format, Object... args) {
+        print(String.format(l, format, args));
+        return this;
+    }
+
+    @Override
+    public PrintStream printf(String format, Object... args) {
+        return format(format, args);
+    }
+
+    @Override
+    public PrintStream printf(Locale l, String format, Object... args) {
+        return format(l, format, args);
+    }
+
+    @Override
+    public PrintStream append(CharSequence csq) {
+        print(String.valueOf(csq));
+        return this;
+    }
+
+    @Override
+    public PrintStream append(CharSequence csq, int start, int end) {
+        return append((csq == null ? "null" : csq).subSequence(start, end));
+    }
+
+    @Override
+    public PrintStream append(char c) {
+        print(c);
+        return this;
+    }
+
     private void newLine() {
         try {
             this.write(CRLF);
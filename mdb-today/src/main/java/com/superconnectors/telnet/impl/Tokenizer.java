@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+/**
+ * Splits a command line into words, reusing its buffers from line to line.
+ *
+ * Words are separated by spaces or tabs.  Double or single quotes group
+ * a word that contains spaces, and a backslash outside single quotes
+ * takes a following quote, space, tab or backslash literally, so
+ * {@code set motd "hello \"you\""} has the three words set, motd and
+ * hello "you".  Before anything else a backslash is kept as it is, so
+ * regular expressions like {@code a\.b} or {@code \d+} pass through
+ * unchanged.  An unterminated quote runs to the end of the line.
+ *
+ * The unquoted text of all words is written into one char buffer and each
+ * word is an offset range into it; nothing is allocated per line unless a
+ * word is asked for as a String.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Tokenizer {
+
+    private static final String[] NONE = {};
+
+    private char[] chars = new char[128];
+
+    private int[] starts = new int[8];
+
+    private int[] ends = new int[8];
+
+    private int count;
+
+    /**
+     * @return the number of words
+     */
+    public int tokenize(CharSequence line) {
+        final int length = line.length();
+        if (chars.length < length) chars = new char[Math.max(length, chars.length * 2)];
+
+        count = 0;
+        int w = 0;
+        int i = 0;
+
+        while (i < length) {
+            char c = line.charAt(i);
+
+            if (c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+
+            final int start = w;
+            char quote = 0;
+
+            // One word, until unquoted whitespace
+            for (; i < length; i++) {
+                c = line.charAt(i);
+
+                if (quote == 0 && (c == ' ' || c == '\t')) {
+                    break;
+                } else if (quote == 0 && (c == '"' || c == '\'')) {
+                    quote = c;
+                } else if (c == quote) {
+                    quote = 0;
+                } else if (c == '\\' && quote != '\'' && i + 1 < length && escapes(line.charAt(i + 1))) {
+                    chars[w++] = line.charAt(++i);
+                } else {
+                    chars[w++] = c;
+                }
+            }
+
+            add(start, w);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return true if a backslash before the char takes it literally
+     */
+    private static boolean escapes(char c) {
+        return c == '"' || c == '\'' || c == ' ' || c == '\t' || c == '\\';
+    }
+
+    private void add(int start, int end) {
+        if (count == starts.length) {
+            final int[] s = new int[count * 2];
+            final int[] e = new int[count * 2];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            starts = s;
+            ends = e;
+        }
+
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The buffer the words are offsets into.  Only valid until the next
+     * line is tokenized.
+     */
+    char[] chars() {
+        return chars;
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int end(int index) {
+        return ends[index];
+    }
+
+    public String token(int index) {
+        return new String(chars, starts[index], ends[index] - starts[index]);
+    }
+
+    /**
+     * @return the words from the given index on
+     */
+    public String[] tokens(int from) {
+        if (from >= count) return NONE;
+
+        final String[] tokens = new String[count - from];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = token(from + i);
+        }
+        return tokens;
+    }
+}
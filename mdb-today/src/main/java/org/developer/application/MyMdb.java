@@ -31,6 +31,8 @@ import java.util.regex.Pattern;
 public class MyMdb implements TelnetListener {
 
     private final SimpleDateFormat dateFormat = new SimpleDateFormat();
+    private static final Pattern ALL = Pattern.compile(".*");
+
     private final Properties properties = new Properties();
 
     @Override
@@ -68,7 +70,7 @@ public class MyMdb implements TelnetListener {
 
     @Override
     public String doList(Pattern pattern) {
-        if (pattern == null) pattern = Pattern.compile(".*");
+        if (pattern == null) pattern = ALL;
         final StringBuilder sb = new StringBuilder();
         for (Map.Entry<Object, Object> entry : properties.entrySet()) {
             final String key = entry.getKey().toString();
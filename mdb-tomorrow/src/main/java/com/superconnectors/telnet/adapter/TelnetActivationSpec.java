@@ -19,6 +19,11 @@ import com.superconnectors.telnet.api.Command;
 import com.superconnectors.telnet.api.Prompt;
 import com.superconnectors.telnet.api.TelnetListener;
 import com.superconnectors.telnet.impl.Cmd;
+import com.superconnectors.telnet.impl.CommandSettings;
+import com.superconnectors.telnet.impl.Converters;
+import com.superconnectors.telnet.impl.Dispatcher;
+import com.superconnectors.telnet.impl.DispatcherCmd;
+import com.superconnectors.telnet.impl.RateLimiter;
 
 import javax.resource.ResourceException;
 import javax.resource.spi.Activation;
@@ -27,7 +32,9 @@ import javax.resource.spi.InvalidPropertyException;
 import javax.resource.spi.ResourceAdapter;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Activation(messageListeners = TelnetListener.class)
 public class TelnetActivationSpec implements ActivationSpec {
@@ -35,6 +42,33 @@ public class TelnetActivationSpec implements ActivationSpec {
     private ResourceAdapter resourceAdapter;
     private final List<Cmd> cmds = new ArrayList<Cmd>();
     private String prompt;
+    private int ioThreads;
+    private boolean virtualThreads;
+    private int maxSessions;
+    private int acceptBacklog;
+    private long queueWaitMillis;
+    private int outputBufferSize = 8192;
+    private int maxLineLength = 4096;
+    private boolean pipelined;
+    private long idleTimeoutMillis;
+    private long maxLifetimeMillis;
+    private Integer port;
+    private int acceptors = 1;
+    private int minEndpoints = 1;
+    private int maxEndpoints;
+    private long endpointWaitMillis;
+    private long endpointIdleMillis = 60000;
+    private int maxBatchSize = 1000;
+    private int maxOutstanding = 16;
+    private int responseCacheSize = 1024;
+    private long commandTimeoutMillis;
+    private int commandThreads;
+    private int maxInflight;
+    private int rateLimit;
+    private int rateBurst;
+    private String commandRateLimits;
+    private int breakerFailures;
+    private long breakerOpenMillis = 5000;
     private Class<?> beanClass;
 
     public String getPrompt() {
@@ -53,24 +87,378 @@ public class TelnetActivationSpec implements ActivationSpec {
         this.beanClass = beanClass;
     }
 
+    /**
+     * Number of selector threads serving all sessions.  When zero or less
+     * every session gets a thread of its own.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Run each blocking session on a virtual thread instead of a platform
+     * thread.  Ignored on JVMs without virtual thread support.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sessions allowed open at once, zero or less for no limit.
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Pending connection queue length of the listen socket, zero or less
+     * for the platform default.
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    /**
+     * How long a connection over maxSessions waits for a free slot
+     * before it is told the server is busy and closed.  At most
+     * maxSessions connections wait at once; more are closed straight
+     * away.
+     */
+    public long getQueueWaitMillis() {
+        return queueWaitMillis;
+    }
+
+    public void setQueueWaitMillis(long queueWaitMillis) {
+        this.queueWaitMillis = queueWaitMillis;
+    }
+
+    /**
+     * Size of the per-session output buffer.  Output is sent once per
+     * command, when the next prompt is written, or sooner if a command
+     * prints more than fits in the buffer.
+     */
+    public int getOutputBufferSize() {
+        return outputBufferSize;
+    }
+
+    public void setOutputBufferSize(int outputBufferSize) {
+        this.outputBufferSize = outputBufferSize;
+    }
+
+    /**
+     * Longest command line accepted.  Longer lines are discarded and the
+     * client is told so; the session stays open.
+     */
+    public int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+    public void setMaxLineLength(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Runs every command line the client has already sent before writing
+     * the next prompt, and returns all of their output in one write.  Meant
+     * for scripts that send many commands without waiting for each prompt.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     * Closes a session after this long without a command.  Zero, the
+     * default, never times out an idle session.
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Closes a session this long after it was opened, busy or not, once
+     * the running command completes.  Zero, the default, means no limit.
+     */
+    public long getMaxLifetimeMillis() {
+        return maxLifetimeMillis;
+    }
+
+    public void setMaxLifetimeMillis(long maxLifetimeMillis) {
+        this.maxLifetimeMillis = maxLifetimeMillis;
+    }
+
+    /**
+     * Port this activation listens on.  When not set the resource
+     * adapter's port is used, which only one activation can hold.
+     */
+    public Integer getPort() {
+        return port;
+    }
+
+    public void setPort(Integer port) {
+        this.port = port;
+    }
+
+    /**
+     * Number of listening sockets bound to the port with SO_REUSEPORT,
+     * each with its own accept loop, so the kernel spreads incoming
+     * connections over them.  Needs a JVM and OS that support the option;
+     * otherwise a single socket is used.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Message endpoints created at activation, before any session opens.
+     */
+    public int getMinEndpoints() {
+        return minEndpoints;
+    }
+
+    public void setMinEndpoints(int minEndpoints) {
+        this.minEndpoints = minEndpoints;
+    }
+
+    /**
+     * Message endpoints allowed at once, zero or less for no limit.  Each
+     * open session holds one, so this also caps the sessions.
+     */
+    public int getMaxEndpoints() {
+        return maxEndpoints;
+    }
+
+    public void setMaxEndpoints(int maxEndpoints) {
+        this.maxEndpoints = maxEndpoints;
+    }
+
+    /**
+     * How long a new session waits for an endpoint when maxEndpoints are
+     * in use before it is told the server is busy and closed.
+     */
+    public long getEndpointWaitMillis() {
+        return endpointWaitMillis;
+    }
+
+    public void setEndpointWaitMillis(long endpointWaitMillis) {
+        this.endpointWaitMillis = endpointWaitMillis;
+    }
+
+    /**
+     * How long an endpoint beyond minEndpoints may go without a session
+     * before it is released, zero or less to keep it until deactivation.
+     */
+    public long getEndpointIdleMillis() {
+        return endpointIdleMillis;
+    }
+
+    public void setEndpointIdleMillis(long endpointIdleMillis) {
+        this.endpointIdleMillis = endpointIdleMillis;
+    }
+
+    /**
+     * Most commands a session can queue between begin and commit.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Commands returning a Future or CompletionStage a session may have
+     * running at once.  Further ones are refused until one completes.
+     */
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    public void setMaxOutstanding(int maxOutstanding) {
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * Most responses kept for commands with a cacheTtlMillis, zero to
+     * turn the cache off.
+     */
+    public int getResponseCacheSize() {
+        return responseCacheSize;
+    }
+
+    public void setResponseCacheSize(int responseCacheSize) {
+        this.responseCacheSize = responseCacheSize;
+    }
+
+    /**
+     * How long a command may run before it is interrupted and the client
+     * told it timed out, for commands without a timeoutMillis of their
+     * own.  Zero for no limit.
+     */
+    public long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
+    }
+
+    public void setCommandTimeoutMillis(long commandTimeoutMillis) {
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    /**
+     * Threads bean commands run on, so reading a session never waits for
+     * one.  When they are all busy, higher priority commands go first.
+     * Zero, the default, runs each command on its session's thread.
+     */
+    public int getCommandThreads() {
+        return commandThreads;
+    }
+
+    public void setCommandThreads(int commandThreads) {
+        this.commandThreads = commandThreads;
+    }
+
+    /**
+     * Most bean commands running at once across all sessions.  The limit
+     * in force adapts below this as latency rises, and commands over it
+     * are answered with try again later.  Zero, the default, for no limit.
+     */
+    public int getMaxInflight() {
+        return maxInflight;
+    }
+
+    public void setMaxInflight(int maxInflight) {
+        this.maxInflight = maxInflight;
+    }
+
+    /**
+     * Commands per second each client address may run, zero, the default,
+     * for no limit.  Built-ins are not counted.
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    /**
+     * Commands a client may run at once after a quiet spell before the
+     * rateLimit applies; zero for one second's worth.
+     */
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    public void setRateBurst(int rateBurst) {
+        this.rateBurst = rateBurst;
+    }
+
+    /**
+     * Limits for single commands per client address, as a comma separated
+     * list of command=perSecond, for example "set=10,list=2".
+     */
+    public String getCommandRateLimits() {
+        return commandRateLimits;
+    }
+
+    public void setCommandRateLimits(String commandRateLimits) {
+        this.commandRateLimits = commandRateLimits;
+    }
+
+    /**
+     * Failures in a row after which a bean command fails fast, without
+     * being called, for breakerOpenMillis.  Zero, the default, for never.
+     */
+    public int getBreakerFailures() {
+        return breakerFailures;
+    }
+
+    public void setBreakerFailures(int breakerFailures) {
+        this.breakerFailures = breakerFailures;
+    }
+
+    /**
+     * How long a failing command is turned away before one call is let
+     * through to try it again.
+     */
+    public long getBreakerOpenMillis() {
+        return breakerOpenMillis;
+    }
+
+    public void setBreakerOpenMillis(long breakerOpenMillis) {
+        this.breakerOpenMillis = breakerOpenMillis;
+    }
+
     public List<Cmd> getCmds() {
         return cmds;
     }
 
+    private boolean hasCmd(String name) {
+        for (Cmd cmd : cmds) {
+            if (cmd.getName().equals(name)) return true;
+        }
+        return false;
+    }
+
     @Override
     public void validate() throws InvalidPropertyException {
-        // Set Prompt
-        final Prompt prompt = (Prompt) beanClass.getAnnotation(Prompt.class);
-        if (prompt != null) {
-            this.prompt = prompt.value();
-        }
-
-        // Get Commands
-        final Method[] methods = beanClass.getMethods();
-        for (Method method : methods) {
-            if (method.isAnnotationPresent(Command.class)) {
-                final Command command = method.getAnnotation(Command.class);
-                cmds.add(new Cmd(command.value(), method));
+        final Converters converters = new Converters(beanClass.getClassLoader());
+
+        // A dispatcher generated at build time needs no reflection
+        final Dispatcher dispatcher = DispatcherCmd.load(beanClass, converters);
+
+        if (dispatcher != null) {
+            if (dispatcher.getPrompt() != null) {
+                this.prompt = dispatcher.getPrompt();
+            }
+
+            for (String name : dispatcher.getCommands()) {
+                cmds.add(new DispatcherCmd(name, dispatcher));
+            }
+        } else {
+            // Set Prompt
+            final Prompt prompt = beanClass.getAnnotation(Prompt.class);
+            if (prompt != null) {
+                this.prompt = prompt.value();
+            }
+
+            // Get Commands
+            final Method[] methods = beanClass.getMethods();
+            for (Method method : methods) {
+                if (method.isAnnotationPresent(Command.class)) {
+                    final Command command = method.getAnnotation(Command.class);
+                    final Cmd cmd = new Cmd(command.value(), method, converters);
+                    cmd.configure(new CommandSettings(attributes(command)));
+                    cmds.add(cmd);
+                }
             }
         }
 
@@ -81,6 +469,72 @@ public class TelnetActivationSpec implements ActivationSpec {
         if (this.cmds.size() == 0) {
             throw new InvalidPropertyException("No @Command methods");
         }
+        if (port != null && (port < 1 || port > 0xFFFF)) {
+            throw new InvalidPropertyException("port must be between 1 and 65535: " + port);
+        }
+        if (acceptors < 1) {
+            throw new InvalidPropertyException("acceptors must be at least 1: " + acceptors);
+        }
+        if (maxOutstanding < 1) {
+            throw new InvalidPropertyException("maxOutstanding must be at least 1: " + maxOutstanding);
+        }
+        if (maxBatchSize < 1) {
+            throw new InvalidPropertyException("maxBatchSize must be at least 1: " + maxBatchSize);
+        }
+        if (outputBufferSize < 1) {
+            throw new InvalidPropertyException("outputBufferSize must be at least 1: " + outputBufferSize);
+        }
+        if (maxLineLength < 1) {
+            throw new InvalidPropertyException("maxLineLength must be at least 1: " + maxLineLength);
+        }
+        if (commandThreads < 0) {
+            throw new InvalidPropertyException("commandThreads must not be negative: " + commandThreads);
+        }
+        if (maxInflight < 0) {
+            throw new InvalidPropertyException("maxInflight must not be negative: " + maxInflight);
+        }
+        if (rateLimit < 0) {
+            throw new InvalidPropertyException("rateLimit must not be negative: " + rateLimit);
+        }
+        if (rateBurst < 0) {
+            throw new InvalidPropertyException("rateBurst must not be negative: " + rateBurst);
+        }
+        if (breakerFailures < 0) {
+            throw new InvalidPropertyException("breakerFailures must not be negative: " + breakerFailures);
+        }
+        if (breakerOpenMillis < 1) {
+            throw new InvalidPropertyException("breakerOpenMillis must be at least 1: " + breakerOpenMillis);
+        }
+        final Map<String, Integer> commandRates;
+        try {
+            commandRates = RateLimiter.parse(commandRateLimits);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidPropertyException("commandRateLimits " + e.getMessage());
+        }
+        for (String name : commandRates.keySet()) {
+            if (!hasCmd(name)) {
+                throw new InvalidPropertyException("commandRateLimits names an unknown command: " + name);
+            }
+        }
+        if (minEndpoints < 0) {
+            throw new InvalidPropertyException("minEndpoints must not be negative: " + minEndpoints);
+        }
+    }
+
+    /**
+     * @return every attribute of the annotation, defaults included, the
+     * same map a generated dispatcher returns
+     */
+    private static Map<String, Object> attributes(Command command) {
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+        for (Method attribute : Command.class.getDeclaredMethods()) {
+            try {
+                attributes.put(attribute.getName(), attribute.invoke(command));
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot read @Command " + attribute.getName(), e);
+            }
+        }
+        return attributes;
     }
 
     @Override
@@ -16,8 +16,8 @@
 package com.superconnectors.telnet.adapter;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.resource.ResourceException;
 import javax.resource.spi.Activation;
@@ -26,13 +26,12 @@ import javax.resource.spi.BootstrapContext;
 import javax.resource.spi.ConfigProperty;
 import javax.resource.spi.Connector;
 import javax.resource.spi.ResourceAdapterInternalException;
-import javax.resource.spi.endpoint.MessageEndpoint;
 import javax.resource.spi.endpoint.MessageEndpointFactory;
 import javax.transaction.xa.XAResource;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
-import com.superconnectors.telnet.api.TelnetListener;
+import com.superconnectors.telnet.impl.EndpointPool;
 import com.superconnectors.telnet.impl.TelnetServer;
 
 /**
@@ -46,7 +45,18 @@ import com.superconnectors.telnet.impl.TelnetServer;
 )
 public class TelnetResourceAdapter implements javax.resource.spi.ResourceAdapter {
 
-    private final Map<Integer, TelnetServer> activated = new HashMap<Integer, TelnetServer>();
+    /**
+     * Keyed by activation spec; the container hands the same instance to
+     * endpointDeactivation.
+     */
+    private final ConcurrentMap<ActivationSpec, TelnetServer> activated = new ConcurrentHashMap<ActivationSpec, TelnetServer>();
+
+    /**
+     * Which activation holds each port.
+     */
+    private final ConcurrentMap<Integer, ActivationSpec> ports = new ConcurrentHashMap<Integer, ActivationSpec>();
+
+    private BootstrapContext bootstrapContext;
 
     /**
      * Corresponds to the ra.xml <config-property>
@@ -65,43 +75,73 @@ public class TelnetResourceAdapter implements javax.resource.spi.ResourceAdapter
     }
 
     public void start(BootstrapContext bootstrapContext) throws ResourceAdapterInternalException {
+        this.bootstrapContext = bootstrapContext;
     }
 
+    /**
+     * Deactivates whatever the container has not, closing every server
+     * and its endpoints.
+     */
     public void stop() {
+        for (ActivationSpec activationSpec : activated.keySet()) {
+            endpointDeactivation(null, activationSpec);
+        }
     }
 
     public void endpointActivation(MessageEndpointFactory messageEndpointFactory, ActivationSpec activationSpec) throws ResourceException {
         final TelnetActivationSpec telnetActivationSpec = (TelnetActivationSpec) activationSpec;
 
-        final MessageEndpoint messageEndpoint = messageEndpointFactory.createEndpoint(null);
+        final int port = (telnetActivationSpec.getPort() != null) ? telnetActivationSpec.getPort() : this.port;
+
+        final ActivationSpec holder = ports.putIfAbsent(port, activationSpec);
+        if (holder != null) {
+            throw new ResourceException("Port " + port + " is already used by another activation, set a port on its activation spec");
+        }
+
+        // Every session gets an endpoint of its own
+        final EndpointPool endpoints = new EndpointPool(messageEndpointFactory,
+                telnetActivationSpec.getMinEndpoints(),
+                telnetActivationSpec.getMaxEndpoints(),
+                telnetActivationSpec.getEndpointWaitMillis(),
+                telnetActivationSpec.getEndpointIdleMillis());
 
-        // This messageEndpoint instance is also castable to the ejbClass of the MDB
-        final TelnetListener telnetListener = (TelnetListener) messageEndpoint;
+        try {
+            endpoints.warm();
+        } catch (ResourceException e) {
+            endpoints.close();
+            ports.remove(port, activationSpec);
+            throw e;
+        }
 
-        final TelnetServer telnetServer = new TelnetServer(telnetActivationSpec, telnetListener, port);
+        // Accept loop and sessions run on container managed threads
+        final TelnetServer telnetServer = (bootstrapContext != null)
+                ? new TelnetServer(telnetActivationSpec, endpoints, port, new WorkManagerExecutor(bootstrapContext.getWorkManager()))
+                : new TelnetServer(telnetActivationSpec, endpoints, port);
 
         try {
             telnetServer.activate();
-            activated.put(port, telnetServer);
+            activated.put(activationSpec, telnetServer);
         } catch (IOException e) {
+            ports.remove(port, activationSpec);
+            endpoints.close();
             throw new ResourceException(e);
         }
     }
 
     public void endpointDeactivation(MessageEndpointFactory messageEndpointFactory, ActivationSpec activationSpec) {
-        final TelnetActivationSpec telnetActivationSpec = (TelnetActivationSpec) activationSpec;
+        final TelnetServer telnetServer = activated.remove(activationSpec);
 
-        final TelnetServer telnetServer = activated.remove(port);
+        if (telnetServer == null) return;
 
         try {
             telnetServer.deactivate();
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            ports.remove(telnetServer.getPort(), activationSpec);
         }
 
-        final MessageEndpoint endpoint = (MessageEndpoint) telnetServer.getListener();
-
-        endpoint.release();
+        telnetServer.getEndpoints().close();
     }
 
     public XAResource[] getXAResources(ActivationSpec[] activationSpecs) throws ResourceException {
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.adapter;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.resource.spi.work.Work;
+import javax.resource.spi.work.WorkException;
+import javax.resource.spi.work.WorkManager;
+
+import com.superconnectors.telnet.impl.StoppableTask;
+
+/**
+ * Lets the TelnetServer run its accept loop and sessions on threads
+ * owned and accounted for by the container.  When the container releases
+ * the work, a {@link StoppableTask} is closed so its loop ends.
+ *
+ * @version $Revision$ $Date$
+ */
+public class WorkManagerExecutor implements Executor {
+
+    private final WorkManager workManager;
+
+    public WorkManagerExecutor(WorkManager workManager) {
+        this.workManager = workManager;
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        try {
+            workManager.scheduleWork(new Work() {
+                @Override
+                public void release() {
+                    if (!(command instanceof StoppableTask)) return;
+
+                    try {
+                        ((StoppableTask) command).close();
+                    } catch (IOException e) {
+                        // stopping anyway
+                    }
+                }
+
+                @Override
+                public void run() {
+                    command.run();
+                }
+            });
+        } catch (WorkException e) {
+            throw new RejectedExecutionException(e);
+        }
+    }
+}
@@ -16,4 +16,42 @@ import java.lang.annotation.RetentionPolicy;
 public @interface Command {
     String value() default "";
     String description() default "";
+
+    /**
+     * Sessions allowed to run this command at once, zero for no limit.
+     */
+    int maxConcurrency() default 0;
+
+    /**
+     * How long a call over maxConcurrency waits before it is answered busy.
+     */
+    long maxWaitMillis() default 0;
+
+    /**
+     * Serves the response to the same arguments from a cache shared by all
+     * sessions for this long, zero for no caching.  Only for commands
+     * whose result does not depend on the session.
+     */
+    long cacheTtlMillis() default 0;
+
+    /**
+     * Commands whose cached responses are dropped whenever this one runs.
+     */
+    String[] invalidates() default {};
+
+    /**
+     * How long the command may run before it is interrupted and answered
+     * as timed out; zero for the activation spec's commandTimeoutMillis.
+     */
+    long timeoutMillis() default 0;
+
+    /**
+     * Which commands run first when every command thread is busy; only
+     * used when the activation spec sets commandThreads.
+     */
+    Priority priority() default Priority.NORMAL;
+
+    enum Priority {
+        LOW, NORMAL, HIGH
+    }
 }
\ No newline at end of file
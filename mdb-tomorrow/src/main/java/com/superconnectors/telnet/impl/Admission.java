@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the number of open sessions.  A connection over the cap waits up
+ * to queueWaitMillis for a session to close and is turned away if none
+ * does.
+ *
+ * The acceptor only ever calls the methods that do not block: it takes a
+ * free slot with {@link #tryAcquire} or a place in the queue with
+ * {@link #enqueue}, and the waiting, in {@link #await}, is done by the
+ * connection's own task.  No more connections are queued than there are
+ * sessions, so a flood of them cannot tie up a thread each; the rest, and
+ * every one of them when queueWaitMillis is zero, are told the server is
+ * busy by the acceptor on the spot.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Admission {
+
+    private final Semaphore permits;
+
+    private final int maxQueued;
+
+    private final long queueWaitMillis;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param maxSessions zero or less for no limit
+     */
+    public Admission(int maxSessions, long queueWaitMillis) {
+        this.permits = (maxSessions > 0) ? new Semaphore(maxSessions) : null;
+        this.maxQueued = Math.max(0, maxSessions);
+        this.queueWaitMillis = queueWaitMillis;
+    }
+
+    /**
+     * @return true if the session may open now, false if it must be
+     * {@link #enqueue queued} or turned away
+     */
+    public boolean tryAcquire() {
+        if (permits == null || permits.tryAcquire()) {
+            active.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a place in the queue for a connection that got no slot.  The
+     * connection's task must then call {@link #await}, also to be told it
+     * is turned away, so the client hears it is busy off the acceptor.
+     *
+     * @return false, counting it as rejected, if the queue is full or
+     * connections do not wait at all; the acceptor then tells the client
+     * it is busy itself
+     */
+    public boolean enqueue() {
+        if (queueWaitMillis <= 0) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        int n;
+        do {
+            if ((n = queued.get()) >= maxQueued) {
+                rejected.incrementAndGet();
+                return false;
+            }
+        } while (!queued.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Waits up to queueWaitMillis for a slot for a queued connection.
+     *
+     * @return false, counting it as rejected, if none came free
+     */
+    public boolean await() {
+        try {
+            if (permits.tryAcquire(queueWaitMillis, TimeUnit.MILLISECONDS)) {
+                active.incrementAndGet();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queued.decrementAndGet();
+        }
+
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Gives back a place in the queue without waiting, for a connection
+     * whose task could not be started.
+     */
+    public void dequeue() {
+        queued.decrementAndGet();
+        rejected.incrementAndGet();
+    }
+
+    public void release() {
+        active.decrementAndGet();
+        if (permits != null) permits.release();
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
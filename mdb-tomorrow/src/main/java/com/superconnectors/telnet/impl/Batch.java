@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import javax.resource.spi.endpoint.MessageEndpoint;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commands queued between begin and commit.  On commit they all run
+ * inside a single beforeDelivery/afterDelivery, so the container starts
+ * one transaction and runs its interceptors once for the whole batch.
+ * The Method handed to beforeDelivery is that of the first command, so
+ * its transaction attribute applies to the batch.
+ *
+ * The first command to fail stops the batch and the ones after it are not
+ * run: a RuntimeException from the bean marks a container-managed
+ * transaction for rollback, so anything they did would be lost anyway.
+ * Whether the commands before it are kept is the container's call, an
+ * application exception does not roll back.  A commit the container
+ * fails in afterDelivery is answered with that failure.
+ *
+ * Asynchronous commands are waited for before the next one runs, so
+ * they complete within the delivery too.  Each command has its own
+ * deadline.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Batch {
+
+    private final int maxSize;
+
+    private final List<Cmd> cmds = new ArrayList<Cmd>();
+
+    private final List<String[]> args = new ArrayList<String[]>();
+
+    public Batch(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return false if the batch is full
+     */
+    public boolean add(Cmd cmd, String[] arguments) {
+        if (cmds.size() >= maxSize) return false;
+
+        cmds.add(cmd);
+        args.add(arguments);
+        return true;
+    }
+
+    public List<Cmd> getCmds() {
+        return cmds;
+    }
+
+    public int size() {
+        return cmds.size();
+    }
+
+    /**
+     * Runs the queued commands and prints, for each, its number, ok or
+     * failed, and its result or error, followed by a summary line; an
+     * error line if the batch was stopped.
+     */
+    public void run(SessionContext session, PrintStream out) throws Throwable {
+        if (cmds.isEmpty()) {
+            out.println("committed 0 commands");
+            return;
+        }
+
+        final Object impl = session.getEndpoint();
+        int run = 0;
+        boolean failed = false;
+
+        final boolean endpoint = impl instanceof MessageEndpoint;
+        if (endpoint) {
+            ((MessageEndpoint) impl).beforeDelivery(cmds.get(0).getMethod());
+        }
+
+        try {
+            while (run < cmds.size() && !failed) {
+                final Cmd cmd = cmds.get(run);
+                try {
+                    final Object result = cmd.run(impl, args.get(run), session.deadline(cmd));
+                    out.println((run + 1) + " ok " + cmd.getName());
+                    Cmd.print(result, out);
+                } catch (Throwable throwable) {
+                    failed = true;
+                    out.println((run + 1) + " failed " + cmd.getName() + ": " + Failures.describe(throwable));
+                }
+                run++;
+            }
+        } finally {
+            if (endpoint) {
+                ((MessageEndpoint) impl).afterDelivery();
+            }
+        }
+
+        if (failed) {
+            out.println(Failures.error(Failures.BATCH_FAILED, "command " + run + " of " + cmds.size() + " failed, " + (cmds.size() - run) + " not run"));
+        } else {
+            out.println("committed " + cmds.size() + " commands");
+        }
+    }
+}
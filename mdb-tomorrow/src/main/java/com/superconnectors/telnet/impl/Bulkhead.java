@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps how many sessions run one command at once, so an expensive
+ * command cannot take every thread from the cheap ones.  A call over the
+ * cap waits up to maxWaitMillis for a running one to finish and is then
+ * answered busy.  Taking a permit that is free is a single CAS.
+ *
+ * Also counts the calls running now and the most seen at once, with or
+ * without a cap.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Bulkhead {
+
+    private final Semaphore permits;
+
+    private final int maxConcurrency;
+
+    private final long maxWaitMillis;
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private final AtomicLong busy = new AtomicLong();
+
+    /**
+     * @param maxConcurrency zero or less for no limit
+     */
+    public Bulkhead(int maxConcurrency, long maxWaitMillis) {
+        this.permits = (maxConcurrency > 0) ? new Semaphore(maxConcurrency) : null;
+        this.maxConcurrency = maxConcurrency;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * @throws BusyException if no permit became free in time
+     */
+    public void acquire(String name) throws BusyException {
+        if (permits != null && !permits.tryAcquire()) {
+            boolean acquired = false;
+            if (maxWaitMillis > 0) {
+                try {
+                    acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (!acquired) {
+                busy.incrementAndGet();
+                throw new BusyException(name + ": busy, " + maxConcurrency + " already running, try again later");
+            }
+        }
+
+        final int now = running.incrementAndGet();
+
+        int max;
+        while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) {
+        }
+    }
+
+    public void release() {
+        running.decrementAndGet();
+        if (permits != null) permits.release();
+    }
+
+    public int getRunning() {
+        return running.get();
+    }
+
+    public int getPeak() {
+        return peak.get();
+    }
+
+    public long getBusy() {
+        return busy.get();
+    }
+
+    /**
+     * Answered to the client as is, so it carries no stack trace.
+     */
+    public static class BusyException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public BusyException(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -16,13 +16,9 @@
 package com.superconnectors.telnet.impl;
 
 import javax.resource.spi.endpoint.MessageEndpoint;
-import java.beans.PropertyEditor;
-import java.beans.PropertyEditorManager;
+import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.regex.Pattern;
 
 /**
  * @version $Revision$ $Date$
@@ -31,87 +27,248 @@ public class Cmd {
 
     private final String name;
 
+    private final String usage;
+
     private final Method method;
 
+    private final Invoker invoker;
+
+    private Boolean async;
+
+    private CommandSettings settings = CommandSettings.DEFAULTS;
+
+    private Bulkhead bulkhead = new Bulkhead(0, 0);
+
+    private CircuitBreaker breaker = new CircuitBreaker(0, 0);
+
     public Cmd(String name, Method method) {
+        this(name, method, new Converters(method.getDeclaringClass().getClassLoader()));
+    }
+
+    public Cmd(String name, Method method, Converters converters) {
         this.name = name;
+        this.usage = usage(name, method.getParameterTypes());
         this.method = method;
+        this.invoker = Invoker.compile(method, converters);
+    }
+
+    /**
+     * For commands that are not called through a Method, see
+     * {@link DispatcherCmd}; those override {@link #invoke} and
+     * {@link #getMethod}.
+     */
+    protected Cmd(String name, String usage) {
+        this.name = name;
+        this.usage = usage;
+        this.method = null;
+        this.invoker = null;
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * The name followed by the parameter types, as shown by help.
+     */
+    public String getUsage() {
+        return usage;
+    }
+
+    /**
+     * Applies the @Command attributes; called before the server starts.
+     */
+    public void configure(CommandSettings settings) {
+        this.settings = settings;
+        this.bulkhead = new Bulkhead(settings.getMaxConcurrency(), settings.getMaxWaitMillis());
+    }
+
+    public CommandSettings getSettings() {
+        return settings;
+    }
+
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Called before the server starts.
+     */
+    public void setBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
     public void exec(Object impl, String[] args, PrintStream out) throws Throwable {
+        print(call(impl, args), out);
+    }
+
+    /**
+     * Invokes the command within one delivery and returns its result
+     * without printing it.  A call over the command's maxConcurrency is
+     * turned away before the delivery begins.
+     *
+     * @throws Bulkhead.BusyException if the command is at its limit
+     */
+    public Object call(Object impl, String[] args) throws Throwable {
+        return call(impl, args, null);
+    }
+
+    /**
+     * As {@link #call(Object, String[])}, stopping the command when the
+     * deadline passes or is cancelled.  The delivery still ends with
+     * afterDelivery on this thread either way.
+     *
+     * @param deadline null to let the command run as long as it takes
+     * @throws Deadline.ExpiredException if the command was stopped
+     */
+    public Object call(Object impl, String[] args, Deadline deadline) throws Throwable {
+        bulkhead.acquire(name);
         try {
 
             if (impl instanceof MessageEndpoint) {
                 MessageEndpoint endpoint = (MessageEndpoint) impl;
-                endpoint.beforeDelivery(method);
+                endpoint.beforeDelivery(getMethod());
             }
 
-            final Object result = method.invoke(impl, toParams(args));
-            if (result != null) {
-                final String text = result.toString().replaceAll("\n*$", "");
-                out.println(text);
-                out.println();
-            }
-        } catch (InvocationTargetException e) {
-            throw e.getTargetException();
+            return invoke(impl, args, deadline, false);
         } finally {
             if (impl instanceof MessageEndpoint) {
                 MessageEndpoint endpoint = (MessageEndpoint) impl;
                 endpoint.afterDelivery();
             }
+            bulkhead.release();
         }
     }
 
-    private Object[] toParams(String[] args) {
-        final Class<?>[] expected = method.getParameterTypes();
-        final Object[] converted = new Object[expected.length];
+    /**
+     * Invokes the command within its bulkhead, inside a delivery the
+     * caller has already begun, and waits for an asynchronous result so
+     * it completes within the delivery too.
+     */
+    Object run(Object impl, String[] args, Deadline deadline) throws Throwable {
+        bulkhead.acquire(name);
+        try {
+            return invoke(impl, args, deadline, true);
+        } finally {
+            bulkhead.release();
+        }
+    }
 
-        for (int i = 0; i < expected.length; i++) {
-            if (args.length <= i) {
-                converted[i] = null;
+    /**
+     * Only failures of the command itself count towards its breaker, not
+     * arguments that could not be converted or a cancel the client asked
+     * for.
+     *
+     * @throws CircuitBreaker.OpenException if the command has been failing
+     */
+    private Object invoke(Object impl, String[] args, Deadline deadline, boolean await) throws Throwable {
+        final boolean trial = breaker.acquire(name);
+        try {
+            final Object result = timed(impl, args, deadline, await);
+            breaker.success(trial);
+            return result;
+        } catch (Converters.InvalidArgumentException e) {
+            breaker.ignore(trial);
+            throw e;
+        } catch (Deadline.ExpiredException e) {
+            if (e.isCancelled()) {
+                breaker.ignore(trial);
             } else {
-                converted[i] = convert(expected[i], args[i]);
+                breaker.failure(trial);
             }
+            throw e;
+        } catch (Throwable t) {
+            breaker.failure(trial);
+            throw t;
         }
-        return converted;
-    }
-
-    private static Object convert(Class<?> type, String text) {
-        final PropertyEditor editor = PropertyEditorManager.findEditor(type);
-
-        if (editor != null) {
-            editor.setAsText(text);
-            return editor.getValue();
-        } else {
-            try {
-                final Constructor<?> constructor = type.getConstructor(String.class);
-                return constructor.newInstance(text);
-            } catch (NoSuchMethodException e) {
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    }
+
+    private Object timed(Object impl, String[] args, Deadline deadline, boolean await) throws Throwable {
+        if (deadline == null) {
+            final Object result = invoke(impl, args);
+            return await ? ResponseSequencer.await(result) : result;
         }
 
-        return null;
+        deadline.start();
+        try {
+            final Object result = invoke(impl, args);
+            return await ? ResponseSequencer.await(result) : result;
+        } catch (Throwable t) {
+            throw deadline.finish() ? deadline.expired() : t;
+        } finally {
+            deadline.finish();
+        }
     }
 
-    public Method getMethod() {
+    /**
+     * Writes a command result followed by a blank line; nothing for null.
+     */
+    static void print(Object result, PrintStream out) {
+        if (result != null) {
+            final String text = result.toString().replaceAll("\n*$", "");
+            out.println(text);
+            out.println();
+        }
+    }
+
+    /**
+     * @return the bytes {@link #print} writes for the result
+     */
+    static byte[] encode(Object result) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new TelnetPrintStream(bytes);
+        print(result, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    protected Object invoke(Object impl, String[] args) throws Throwable {
+        return invoker.invoke(impl, args);
+    }
+
+    public Method getMethod() throws NoSuchMethodException {
         return method;
     }
 
-    static {
-        PropertyEditorManager.registerEditor(Pattern.class, PatternEditor.class);
+    /**
+     * @return true if the command returns a Future or CompletionStage
+     */
+    public boolean isAsync() throws NoSuchMethodException {
+        if (async == null) {
+            final Method method = getMethod();
+            async = method != null && ResponseSequencer.isAsync(method.getReturnType());
+        }
+        return async;
     }
 
-    public static class PatternEditor extends java.beans.PropertyEditorSupport {
+    /**
+     * Shared with the generated dispatchers so both render the same text.
+     */
+    public static String usage(String name, Class<?>[] types) {
+        final String[] names = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            names[i] = types[i].getSimpleName();
+        }
+        return usage(name, names);
+    }
+
+    public static String usage(String name, String[] simpleTypeNames) {
+        final StringBuilder sb = new StringBuilder();
+
+        sb.append(name).append(" ");
 
-        @Override
-        public void setAsText(String text) throws IllegalArgumentException {
-            setValue(Pattern.compile(text));
+        for (String type : simpleTypeNames) {
+            sb.append("<").append(type.toLowerCase()).append(">").append(" ");
         }
+
+        if (simpleTypeNames.length == 0) {
+            sb.append("[no options]");
+        }
+
+        return sb.toString();
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * How one command is run, taken from the attributes of its @Command.
+ * The attributes arrive as a map, read reflectively from the annotation
+ * or generated into the {@link Dispatcher}, so this package does not
+ * depend on the annotation itself.  Missing attributes keep their
+ * defaults.
+ *
+ * @version $Revision$ $Date$
+ */
+public class CommandSettings {
+
+    public static final CommandSettings DEFAULTS = new CommandSettings(Collections.<String, Object>emptyMap());
+
+    private final int maxConcurrency;
+
+    private final long maxWaitMillis;
+
+    private final long cacheTtlMillis;
+
+    private final String[] invalidates;
+
+    private final long timeoutMillis;
+
+    private final int priority;
+
+    public CommandSettings(Map<String, ?> attributes) {
+        this.maxConcurrency = number(attributes, "maxConcurrency").intValue();
+        this.maxWaitMillis = number(attributes, "maxWaitMillis").longValue();
+        this.cacheTtlMillis = number(attributes, "cacheTtlMillis").longValue();
+        this.invalidates = strings(attributes, "invalidates");
+        this.timeoutMillis = number(attributes, "timeoutMillis").longValue();
+        this.priority = priority(attributes.get("priority"));
+    }
+
+    /**
+     * Sessions allowed to run the command at once, zero or less for no
+     * limit.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * How long a call over maxConcurrency waits for a running one to
+     * finish before it is answered busy.
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * How long the response to the same arguments is served from the
+     * {@link ResponseCache}, zero for not at all.
+     */
+    public long getCacheTtlMillis() {
+        return cacheTtlMillis;
+    }
+
+    /**
+     * Commands whose cached responses are dropped when this one runs.
+     * Read on every call, so the array is shared; do not modify it.
+     */
+    public String[] getInvalidates() {
+        return invalidates;
+    }
+
+    /**
+     * How long the command may run before it is interrupted, zero for the
+     * server's default.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * One of the {@link CommandScheduler} priorities.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * The enum constants are declared from lowest to highest
+     */
+    private static int priority(Object value) {
+        if (!(value instanceof Enum)) return CommandScheduler.NORMAL;
+
+        final int ordinal = ((Enum<?>) value).ordinal();
+        return Math.max(CommandScheduler.LOW, Math.min(CommandScheduler.HIGH, ordinal));
+    }
+
+    private static String[] strings(Map<String, ?> attributes, String name) {
+        final Object value = attributes.get(name);
+        return (value instanceof String[]) ? ((String[]) value).clone() : new String[0];
+    }
+
+    private static Number number(Map<String, ?> attributes, String name) {
+        final Object value = attributes.get(name);
+        return (value instanceof Number) ? (Number) value : 0;
+    }
+}
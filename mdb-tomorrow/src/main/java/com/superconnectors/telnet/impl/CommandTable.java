@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Immutable trie over the command names, built once per server.  A name is
+ * looked up straight from a char range without creating a String, and any
+ * prefix that only one command starts with finds that command, so
+ * {@code se} runs {@code set} as long as no other command starts with se.
+ * An exact name always wins over longer names it is a prefix of.
+ *
+ * @version $Revision$ $Date$
+ */
+public class CommandTable {
+
+    private final Node root = new Node();
+
+    public CommandTable(Collection<? extends Cmd> cmds) {
+        for (Cmd cmd : cmds) {
+            Node node = root;
+            node.add(cmd);
+            for (int i = 0; i < cmd.getName().length(); i++) {
+                node = node.child(cmd.getName().charAt(i));
+                node.add(cmd);
+            }
+            node.cmd = cmd;
+        }
+    }
+
+    /**
+     * @return the command, or null if the name is unknown or ambiguous
+     */
+    public Cmd find(char[] chars, int start, int end) {
+        final Node node = node(chars, start, end);
+
+        if (node == null) return null;
+        if (node.cmd != null) return node.cmd;
+        return (node.matches.size() == 1) ? node.matches.get(0) : null;
+    }
+
+    public Cmd find(String name) {
+        return find(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * @return all commands the name is a prefix of, for error messages
+     */
+    public List<Cmd> candidates(char[] chars, int start, int end) {
+        final Node node = node(chars, start, end);
+        return (node == null) ? new ArrayList<Cmd>() : new ArrayList<Cmd>(node.matches);
+    }
+
+    private Node node(char[] chars, int start, int end) {
+        if (start == end) return null;
+
+        Node node = root;
+        for (int i = start; i < end && node != null; i++) {
+            node = node.get(chars[i]);
+        }
+        return node;
+    }
+
+    private static class Node {
+
+        private char[] keys = new char[0];
+
+        private Node[] children = new Node[0];
+
+        /**
+         * Every command whose name starts with the path to this node
+         */
+        private final List<Cmd> matches = new ArrayList<Cmd>(1);
+
+        private Cmd cmd;
+
+        private void add(Cmd cmd) {
+            matches.add(cmd);
+        }
+
+        private Node get(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        private Node child(char c) {
+            Node node = get(c);
+            if (node == null) {
+                node = new Node();
+
+                final char[] k = new char[keys.length + 1];
+                final Node[] n = new Node[children.length + 1];
+                System.arraycopy(keys, 0, k, 0, keys.length);
+                System.arraycopy(children, 0, n, 0, children.length);
+                k[keys.length] = c;
+                n[children.length] = node;
+
+                keys = k;
+                children = n;
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import com.superconnectors.telnet.api.Converter;
+
+import java.beans.PropertyEditor;
+import java.beans.PropertyEditorManager;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves, once per parameter, how a command line argument becomes the
+ * parameter value.  Each conversion is a MethodHandle taking the argument
+ * String and returning the exact parameter type, so int, long, double
+ * and boolean parameters are parsed straight into primitives without
+ * boxing.  Patterns come from the shared {@link PatternCache}.
+ *
+ * The built-in conversions read arguments as the PropertyEditors they
+ * replace did: integers like Integer.decode, so 0x1F, #1F and 017 are
+ * hex and octal, and booleans are true or false in any case, anything
+ * else is rejected rather than read as false.
+ *
+ * In order of precedence: {@link Converter}s registered with the
+ * ServiceLoader, the built-in conversions, a PropertyEditor registered
+ * with the PropertyEditorManager and finally a public constructor taking
+ * a String.  A missing argument is null for reference types and never
+ * reaches the conversion.  Whatever a conversion throws arrives as an
+ * {@link InvalidArgumentException}, so it can be told apart from a
+ * failure of the command itself.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Converters {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static final Map<Class<?>, MethodHandle> BUILT_IN = new HashMap<Class<?>, MethodHandle>();
+
+    private static final MethodHandle CONVERT;
+
+    private static final MethodHandle EDIT;
+
+    private static final MethodHandle IS_NULL;
+
+    private static final MethodHandle REJECT;
+
+    static {
+        try {
+            BUILT_IN.put(String.class, MethodHandles.identity(String.class));
+            BUILT_IN.put(int.class, parser(Converters.class, "toInt", int.class));
+            BUILT_IN.put(long.class, parser(Converters.class, "toLong", long.class));
+            BUILT_IN.put(double.class, parser(Double.class, "parseDouble", double.class));
+            BUILT_IN.put(float.class, parser(Float.class, "parseFloat", float.class));
+            BUILT_IN.put(short.class, parser(Converters.class, "toShort", short.class));
+            BUILT_IN.put(byte.class, parser(Converters.class, "toByte", byte.class));
+            BUILT_IN.put(boolean.class, parser(Converters.class, "toBoolean", boolean.class));
+            BUILT_IN.put(Integer.class, boxed(int.class, Integer.class));
+            BUILT_IN.put(Long.class, boxed(long.class, Long.class));
+            BUILT_IN.put(Double.class, parser(Double.class, "valueOf", Double.class));
+            BUILT_IN.put(Float.class, parser(Float.class, "valueOf", Float.class));
+            BUILT_IN.put(Short.class, boxed(short.class, Short.class));
+            BUILT_IN.put(Byte.class, boxed(byte.class, Byte.class));
+            BUILT_IN.put(Boolean.class, boxed(boolean.class, Boolean.class));
+            BUILT_IN.put(Pattern.class, LOOKUP.findVirtual(PatternCache.class, "compile", MethodType.methodType(Pattern.class, String.class)).bindTo(PatternCache.getShared()));
+
+            CONVERT = LOOKUP.findVirtual(Converter.class, "convert", MethodType.methodType(Object.class, String.class));
+            EDIT = LOOKUP.findStatic(Converters.class, "edit", MethodType.methodType(Object.class, Class.class, String.class));
+            IS_NULL = LOOKUP.findStatic(Converters.class, "isNull", MethodType.methodType(boolean.class, String.class));
+            REJECT = LOOKUP.findStatic(Converters.class, "reject", MethodType.methodType(Object.class, Class.class, Throwable.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Map<Class<?>, Converter<?>> registered = new HashMap<Class<?>, Converter<?>>();
+
+    /**
+     * Loads the {@link Converter}s visible to the class loader.
+     */
+    public Converters(ClassLoader loader) {
+        for (Converter<?> converter : ServiceLoader.load(Converter.class, loader)) {
+            registered.put(converter.getType(), converter);
+        }
+    }
+
+    /**
+     * @return a handle of type (String) type
+     */
+    public MethodHandle find(Class<?> type) {
+        final Converter<?> converter = registered.get(type);
+        if (converter != null) {
+            return nullSafe(rejecting(CONVERT.bindTo(converter).asType(MethodType.methodType(type, String.class))));
+        }
+
+        final MethodHandle builtIn = BUILT_IN.get(type);
+        if (builtIn != null) {
+            return (type.isPrimitive()) ? rejecting(builtIn) : nullSafe(rejecting(builtIn));
+        }
+
+        final PropertyEditor editor = PropertyEditorManager.findEditor(type);
+        if (editor != null && !type.isPrimitive()) {
+            // Editors keep state, each conversion gets its own instance
+            return nullSafe(rejecting(MethodHandles.insertArguments(EDIT, 0, editor.getClass()).asType(MethodType.methodType(type, String.class))));
+        }
+
+        try {
+            return nullSafe(rejecting(MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class, String.class))));
+        } catch (ReflectiveOperationException e) {
+            // not convertible, the parameter is always null
+        }
+
+        if (type.isPrimitive()) {
+            throw new IllegalArgumentException("No conversion to " + type.getName());
+        }
+
+        return MethodHandles.dropArguments(MethodHandles.constant(type, null), 0, String.class);
+    }
+
+    private static MethodHandle parser(Class<?> owner, String name, Class<?> type) throws ReflectiveOperationException {
+        return LOOKUP.findStatic(owner, name, MethodType.methodType(type, String.class));
+    }
+
+    private static MethodHandle boxed(Class<?> primitive, Class<?> type) {
+        return BUILT_IN.get(primitive).asType(MethodType.methodType(type, String.class));
+    }
+
+    private static int toInt(String text) {
+        return isDecimal(text) ? Integer.parseInt(text) : Integer.decode(text);
+    }
+
+    private static long toLong(String text) {
+        return isDecimal(text) ? Long.parseLong(text) : Long.decode(text);
+    }
+
+    private static short toShort(String text) {
+        return Short.decode(text);
+    }
+
+    private static byte toByte(String text) {
+        return Byte.decode(text);
+    }
+
+    private static boolean toBoolean(String text) {
+        if ("true".equalsIgnoreCase(text)) return true;
+        if ("false".equalsIgnoreCase(text)) return false;
+        throw new IllegalArgumentException("not true or false");
+    }
+
+    /**
+     * @return true if decode would read it as plain decimal, which the
+     * parse methods do without boxing
+     */
+    private static boolean isDecimal(String text) {
+        final int start = (text.startsWith("-") || text.startsWith("+")) ? 1 : 0;
+        if (text.length() <= start + 1) return true;
+
+        final char first = text.charAt(start);
+        return first != '0' && first != '#';
+    }
+
+    private static MethodHandle nullSafe(MethodHandle convert) {
+        final Class<?> type = convert.type().returnType();
+        final MethodHandle missing = MethodHandles.dropArguments(MethodHandles.constant(type, null), 0, String.class);
+        return MethodHandles.guardWithTest(IS_NULL, missing, convert);
+    }
+
+    /**
+     * Turns anything the conversion throws into an
+     * {@link InvalidArgumentException}.
+     */
+    private static MethodHandle rejecting(MethodHandle convert) {
+        final Class<?> type = convert.type().returnType();
+        final MethodHandle reject = MethodHandles.insertArguments(REJECT, 0, type)
+                .asType(MethodType.methodType(type, Throwable.class, String.class));
+        return MethodHandles.catchException(convert, Throwable.class, reject);
+    }
+
+    private static Object reject(Class<?> type, Throwable failure, String text) {
+        throw new InvalidArgumentException("cannot convert '" + text + "' to " + type.getSimpleName() + ": " + failure, failure);
+    }
+
+    private static boolean isNull(String text) {
+        return text == null;
+    }
+
+    private static Object edit(Class<?> editorClass, String text) throws ReflectiveOperationException {
+        final PropertyEditor editor = (PropertyEditor) editorClass.getDeclaredConstructor().newInstance();
+        editor.setAsText(text);
+        return editor.getValue();
+    }
+
+    /**
+     * An argument the command's parameter could not be made from.  The
+     * client's mistake, answered as is, so it carries no stack trace.
+     */
+    public static class InvalidArgumentException extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        public InvalidArgumentException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
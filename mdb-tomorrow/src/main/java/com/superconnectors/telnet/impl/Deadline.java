@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops one running command when its timeout passes or when the client
+ * asks for it with telnet Interrupt Process.  A command running on the
+ * session's thread is interrupted; one that returned a Future has the
+ * Future cancelled.
+ *
+ * The interrupt is only ever delivered between {@link #start()} and
+ * {@link #finish()}, and finish clears it again, so it cannot leak into
+ * afterDelivery or into the session's next read.
+ *
+ * While the command runs, the optional poll is run every
+ * {@link #POLL_MILLIS}, under the same lock as finish; it is how a busy
+ * blocking session still notices an Interrupt Process.  The wheel only
+ * hands the poll to the poller executor, so its thread never touches a
+ * socket and one slow session cannot hold up every timer.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Deadline implements TimingWheel.Task {
+
+    static final long POLL_MILLIS = 200;
+
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int TIMED_OUT = 3;
+    private static final int CANCELLED = 4;
+
+    private final String name;
+
+    private final long timeoutMillis;
+
+    private final TimingWheel wheel;
+
+    private final Runnable poll;
+
+    private final Executor poller;
+
+    private final Collection<Deadline> running;
+
+    private int state = NEW;
+
+    private boolean finished;
+
+    private boolean pollQueued;
+
+    private Thread thread;
+
+    private Future<?> future;
+
+    private long expires;
+
+    private volatile TimingWheel.Timeout timeout;
+
+    /**
+     * @param timeoutMillis zero or less to run until done or cancelled
+     * @param poll null for none; only run for commands timed with
+     * {@link #start()}
+     * @param poller runs the poll, may be null if there is none
+     * @param running where the deadline is listed while its command runs,
+     * may be null
+     */
+    public Deadline(String name, long timeoutMillis, TimingWheel wheel, Runnable poll, Executor poller, Collection<Deadline> running) {
+        this.name = name;
+        this.timeoutMillis = timeoutMillis;
+        this.wheel = wheel;
+        this.poll = poll;
+        this.poller = poller;
+        this.running = running;
+    }
+
+    /**
+     * Starts timing a command running on the calling thread.
+     */
+    public void start() {
+        synchronized (this) {
+            thread = Thread.currentThread();
+        }
+        begin();
+    }
+
+    /**
+     * Starts timing an asynchronous result.
+     */
+    public void start(Future<?> future) {
+        synchronized (this) {
+            this.future = future;
+        }
+        begin();
+    }
+
+    private void begin() {
+        synchronized (this) {
+            if (state != NEW) return;
+            state = RUNNING;
+        }
+
+        expires = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (running != null) running.add(this);
+        schedule(System.nanoTime());
+    }
+
+    /**
+     * Ends the deadline once the command returned or failed.  Safe to call
+     * more than once.
+     *
+     * @return true if the command was timed out or cancelled
+     */
+    public boolean finish() {
+        final boolean stopped;
+        synchronized (this) {
+            if (state == RUNNING) state = DONE;
+            stopped = state == TIMED_OUT || state == CANCELLED;
+
+            if (finished) return stopped;
+            finished = true;
+
+            // Delivered under this lock, so it has arrived by now
+            if (stopped && thread == Thread.currentThread()) Thread.interrupted();
+        }
+
+        final TimingWheel.Timeout timeout = this.timeout;
+        if (timeout != null) timeout.cancel();
+        if (running != null) running.remove(this);
+
+        return stopped;
+    }
+
+    /**
+     * Stops the command on behalf of the client.
+     *
+     * @return false if it was not running
+     */
+    public boolean cancel() {
+        return stop(CANCELLED);
+    }
+
+    @Override
+    public void expire() {
+        final boolean queue;
+        synchronized (this) {
+            if (state != RUNNING) return;
+
+            if (timeoutMillis > 0 && System.nanoTime() - expires >= 0) {
+                stop(TIMED_OUT);
+                return;
+            }
+
+            // One poll at a time, a slow one is not piled up behind
+            queue = polling() && !pollQueued;
+            if (queue) pollQueued = true;
+        }
+
+        if (queue) {
+            try {
+                poller.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (Deadline.this) {
+                            pollQueued = false;
+                            if (state == RUNNING) poll.run();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    pollQueued = false;
+                }
+            }
+        }
+
+        schedule(System.nanoTime());
+    }
+
+    private synchronized boolean stop(int reason) {
+        if (state != RUNNING) return false;
+        state = reason;
+
+        if (thread != null) thread.interrupt();
+        if (future != null) future.cancel(true);
+        return true;
+    }
+
+    /**
+     * Only while the command holds the session's thread; an asynchronous
+     * result leaves the session free to read for itself.
+     */
+    private synchronized boolean polling() {
+        return poll != null && thread != null;
+    }
+
+    private void schedule(long now) {
+        long delay = (timeoutMillis > 0) ? TimeUnit.NANOSECONDS.toMillis(Math.max(0, expires - now)) : Long.MAX_VALUE;
+        if (polling()) delay = Math.min(delay, POLL_MILLIS);
+
+        if (delay != Long.MAX_VALUE) timeout = wheel.schedule(this, delay);
+    }
+
+    /**
+     * @return what the client is told instead of the command's result
+     */
+    public synchronized String getMessage() {
+        if (state == TIMED_OUT) return name + ": timed out after " + timeoutMillis + " ms";
+        return name + ": cancelled";
+    }
+
+    /**
+     * @return the exception to answer the client with
+     */
+    public synchronized ExpiredException expired() {
+        return new ExpiredException(getMessage(), state == CANCELLED);
+    }
+
+    /**
+     * Answered to the client as is, so it carries no stack trace.
+     */
+    public static class ExpiredException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean cancelled;
+
+        public ExpiredException(String message, boolean cancelled) {
+            super(message);
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * @return true if the client asked for it, false if it timed out
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.lang.reflect.Method;
+
+/**
+ * A command executed through a generated {@link Dispatcher}.
+ *
+ * @version $Revision$ $Date$
+ */
+public class DispatcherCmd extends Cmd {
+
+    private final Dispatcher dispatcher;
+
+    private volatile Method method;
+
+    public DispatcherCmd(String name, Dispatcher dispatcher) {
+        super(name, dispatcher.getUsage(name));
+        this.dispatcher = dispatcher;
+        configure(new CommandSettings(dispatcher.getAttributes(name)));
+    }
+
+    @Override
+    protected Object invoke(Object impl, String[] args) throws Throwable {
+        return dispatcher.dispatch(impl, getName(), args);
+    }
+
+    @Override
+    public Method getMethod() throws NoSuchMethodException {
+        if (method == null) {
+            method = dispatcher.getMethod(getName());
+        }
+        return method;
+    }
+
+    /**
+     * @return the dispatcher generated for the bean class, or null if it
+     * was not built with the CommandProcessor
+     */
+    public static Dispatcher load(Class<?> beanClass, Converters converters) {
+        final Class<?> type;
+        try {
+            type = Class.forName(beanClass.getName() + Dispatcher.SUFFIX, true, beanClass.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        try {
+            return (Dispatcher) type.getConstructor(Converters.class).newInstance(converters);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot create " + type.getName(), e);
+        }
+    }
+}
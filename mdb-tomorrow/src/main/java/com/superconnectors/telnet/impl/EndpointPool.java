@@ -0,0 +1,340 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import com.superconnectors.telnet.api.TelnetListener;
+
+import javax.resource.ResourceException;
+import javax.resource.spi.endpoint.MessageEndpoint;
+import javax.resource.spi.endpoint.MessageEndpointFactory;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MessageEndpoints for the sessions of one activation.  Each session takes
+ * an endpoint when it opens and keeps it to itself until it closes, so a
+ * bean instance only ever sees one session at a time and may keep state
+ * for it.
+ *
+ * The pool creates minEndpoints when it is warmed at activation and more
+ * on demand, up to maxEndpoints.  When all of them are in use a new
+ * session waits up to waitMillis for one to be returned and is turned
+ * away if none is.  Returned endpoints are reused most recent first.
+ *
+ * Once {@link #start started}, the pool releases endpoints that have been
+ * idle for idleMillis while it holds more than minEndpoints, so a burst
+ * of sessions does not keep its bean instances for good.  The least
+ * recently returned go first; the sweep runs on the timing wheel and the
+ * releasing on the executor.
+ *
+ * @version $Revision$ $Date$
+ */
+public class EndpointPool implements TimingWheel.Task {
+
+    private final MessageEndpointFactory factory;
+
+    private final TelnetListener shared;
+
+    private final int minEndpoints;
+
+    private final Semaphore permits;
+
+    private final long waitMillis;
+
+    private final long idleMillis;
+
+    /**
+     * Most recently returned first
+     */
+    private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<Idle>();
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    private volatile boolean closed;
+
+    private volatile TimingWheel wheel;
+
+    private volatile Executor executor;
+
+    /**
+     * @param maxEndpoints zero or less for no limit
+     * @param idleMillis zero or less to keep idle endpoints until close
+     */
+    public EndpointPool(MessageEndpointFactory factory, int minEndpoints, int maxEndpoints, long waitMillis, long idleMillis) {
+        this.factory = factory;
+        this.shared = null;
+        this.minEndpoints = (maxEndpoints > 0) ? Math.min(minEndpoints, maxEndpoints) : minEndpoints;
+        this.permits = (maxEndpoints > 0) ? new Semaphore(maxEndpoints) : null;
+        this.waitMillis = waitMillis;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * A pool handing the same listener to every session, for servers
+     * running outside a container.
+     */
+    public EndpointPool(TelnetListener listener) {
+        this.factory = null;
+        this.shared = listener;
+        this.minEndpoints = 0;
+        this.permits = null;
+        this.waitMillis = 0;
+        this.idleMillis = 0;
+    }
+
+    /**
+     * Creates minEndpoints up front so the first sessions do not pay for it.
+     */
+    public void warm() throws ResourceException {
+        while (created.get() < minEndpoints) {
+            idle.offerLast(new Idle(create()));
+        }
+    }
+
+    /**
+     * Looks for endpoints idle too long every idleMillis from now on,
+     * until the wheel is stopped.
+     *
+     * @param executor releases them, off the wheel
+     */
+    public void start(TimingWheel wheel, Executor executor) {
+        if (shared != null || idleMillis <= 0) return;
+
+        this.wheel = wheel;
+        this.executor = executor;
+        wheel.schedule(this, idleMillis);
+    }
+
+    @Override
+    public void expire() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        evictIdle();
+                    } finally {
+                        wheel.schedule(EndpointPool.this, idleMillis);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // No thread to spare, try again next time
+            wheel.schedule(this, idleMillis);
+        }
+    }
+
+    /**
+     * Releases the endpoints idle for longer than idleMillis, oldest
+     * first, as long as more than minEndpoints are left.
+     */
+    public void evictIdle() {
+        final long now = System.nanoTime();
+
+        while (!closed && created.get() > minEndpoints) {
+            final Idle oldest = idle.peekLast();
+            if (oldest == null || now - oldest.since < TimeUnit.MILLISECONDS.toNanos(idleMillis)) return;
+
+            // Unless a new session took it in the meantime
+            if (idle.removeLastOccurrence(oldest)) {
+                evicted.incrementAndGet();
+                destroy(oldest.endpoint);
+            }
+        }
+    }
+
+    /**
+     * @return the endpoint for a new session, or null if none became free
+     * within waitMillis
+     * @throws ResourceException if a new endpoint could not be created
+     */
+    public TelnetListener acquire() throws ResourceException {
+        if (shared != null) return count(shared);
+
+        if (permits != null && !permits.tryAcquire()) {
+            waiting.incrementAndGet();
+            try {
+                if (waitMillis <= 0 || !permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+
+        final Idle reused = idle.pollFirst();
+        MessageEndpoint endpoint = (reused != null) ? reused.endpoint : null;
+        if (endpoint == null) {
+            try {
+                endpoint = create();
+            } catch (ResourceException e) {
+                if (permits != null) permits.release();
+                throw e;
+            } catch (RuntimeException e) {
+                if (permits != null) permits.release();
+                throw e;
+            }
+        }
+
+        return count((TelnetListener) endpoint);
+    }
+
+    /**
+     * Never waits and never creates: for callers that must not be held up,
+     * like the NIO acceptor.
+     *
+     * @return an idle endpoint for a new session, or null if there is
+     * none and {@link #acquire()} has to be called from a thread that may
+     * wait
+     */
+    public TelnetListener poll() {
+        if (shared != null) return count(shared);
+
+        if (permits != null && !permits.tryAcquire()) return null;
+
+        final Idle reused = idle.pollFirst();
+        if (reused == null) {
+            if (permits != null) permits.release();
+            return null;
+        }
+
+        return count((TelnetListener) reused.endpoint);
+    }
+
+    private TelnetListener count(TelnetListener endpoint) {
+        final int now = active.incrementAndGet();
+
+        int max;
+        while (now > (max = peak.get()) && !peak.compareAndSet(max, now)) {
+        }
+
+        return endpoint;
+    }
+
+    /**
+     * Returns the endpoint of a closed session.
+     */
+    public void release(TelnetListener listener) {
+        active.decrementAndGet();
+
+        if (shared != null) return;
+
+        final MessageEndpoint endpoint = (MessageEndpoint) listener;
+        if (closed) {
+            destroy(endpoint);
+        } else {
+            final Idle returned = new Idle(endpoint);
+            idle.offerFirst(returned);
+
+            // close() may have drained the pool before the offer
+            if (closed && idle.remove(returned)) destroy(endpoint);
+        }
+
+        if (permits != null) permits.release();
+    }
+
+    /**
+     * Releases the idle endpoints; those still in use are released as
+     * their sessions close.
+     */
+    public void close() {
+        closed = true;
+
+        Idle entry;
+        while ((entry = idle.pollFirst()) != null) {
+            destroy(entry.endpoint);
+        }
+    }
+
+    private MessageEndpoint create() throws ResourceException {
+        // This messageEndpoint instance is also castable to the ejbClass of the MDB
+        final MessageEndpoint endpoint = factory.createEndpoint(null);
+        created.incrementAndGet();
+        return endpoint;
+    }
+
+    private void destroy(MessageEndpoint endpoint) {
+        created.decrementAndGet();
+        endpoint.release();
+    }
+
+    /**
+     * @return endpoints created and not yet released
+     */
+    public int getCreated() {
+        return (shared != null) ? 1 : created.get();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getPeak() {
+        return peak.get();
+    }
+
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return endpoints released for having been idle too long
+     */
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * An endpoint waiting for a session, since it was created or last
+     * returned.
+     */
+    private static class Idle {
+
+        private final MessageEndpoint endpoint;
+
+        private final long since = System.nanoTime();
+
+        private Idle(MessageEndpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+}
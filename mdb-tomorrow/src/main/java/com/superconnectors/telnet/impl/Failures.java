@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Answers every error to the client in one line, "ERR code message", so
+ * a client can tell errors from results by the first word and what went
+ * wrong by the second.
+ *
+ * A command that throws is answered with its exception and the stack
+ * trace is left to the server log.  Traces are sampled: at most one per
+ * exception class every {@link #SAMPLE_MILLIS}, saying how many were left
+ * out since, so a command failing on every call costs a line to the
+ * client and next to nothing in the log.  The exceptions the server
+ * itself answers with, like {@link Bulkhead.BusyException}, carry their
+ * own code and are never logged.
+ *
+ * @version $Revision$ $Date$
+ */
+public class Failures {
+
+    /**
+     * The command threw
+     */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * The command's circuit breaker is open
+     */
+    public static final String UNAVAILABLE = "UNAVAILABLE";
+
+    /**
+     * The session could not go on
+     */
+    public static final String INTERNAL = "INTERNAL";
+
+    /**
+     * No command has that name
+     */
+    public static final String NOT_FOUND = "NOT_FOUND";
+
+    /**
+     * More than one command starts with that name
+     */
+    public static final String AMBIGUOUS = "AMBIGUOUS";
+
+    /**
+     * An argument could not be converted to its parameter
+     */
+    public static final String BAD_ARGUMENT = "BAD_ARGUMENT";
+
+    /**
+     * The line was longer than the server takes
+     */
+    public static final String LINE_TOO_LONG = "LINE_TOO_LONG";
+
+    /**
+     * The client went over its rate limit
+     */
+    public static final String RATE_LIMITED = "RATE_LIMITED";
+
+    /**
+     * The server is shedding commands
+     */
+    public static final String OVERLOADED = "OVERLOADED";
+
+    /**
+     * The command, or the server, is at its limit of concurrent calls
+     */
+    public static final String BUSY = "BUSY";
+
+    /**
+     * The command ran past its deadline
+     */
+    public static final String TIMEOUT = "TIMEOUT";
+
+    /**
+     * The client interrupted the command
+     */
+    public static final String CANCELLED = "CANCELLED";
+
+    /**
+     * The batch has as many commands as it may
+     */
+    public static final String BATCH_FULL = "BATCH_FULL";
+
+    /**
+     * begin with a batch already open
+     */
+    public static final String BATCH_OPEN = "BATCH_OPEN";
+
+    /**
+     * commit or abort with no batch open
+     */
+    public static final String NO_BATCH = "NO_BATCH";
+
+    /**
+     * A command of the batch failed and the rest were not run
+     */
+    public static final String BATCH_FAILED = "BATCH_FAILED";
+
+    static final long SAMPLE_MILLIS = 1000;
+
+    private static final Logger LOGGER = Logger.getLogger(TelnetServer.class.getName());
+
+    private static final ConcurrentMap<Class<?>, Sample> SAMPLES = new ConcurrentHashMap<Class<?>, Sample>();
+
+    private static final AtomicLong LOGGED = new AtomicLong();
+
+    private static final AtomicLong SUPPRESSED = new AtomicLong();
+
+    private Failures() {
+    }
+
+    /**
+     * @return the line to answer a command failure with
+     */
+    public static String describe(Throwable failure) {
+        if (failure instanceof CircuitBreaker.OpenException) return error(UNAVAILABLE, failure.getMessage());
+        if (failure instanceof Bulkhead.BusyException) return error(BUSY, failure.getMessage());
+        if (failure instanceof Converters.InvalidArgumentException) return error(BAD_ARGUMENT, failure.getMessage());
+        if (failure instanceof LineDecoder.LineTooLongException) return error(LINE_TOO_LONG, failure.getMessage());
+        if (failure instanceof Deadline.ExpiredException) {
+            return error(((Deadline.ExpiredException) failure).isCancelled() ? CANCELLED : TIMEOUT, failure.getMessage());
+        }
+        return describe(FAILED, failure);
+    }
+
+    /**
+     * Logs a sample of the failure and returns the line to answer it with.
+     */
+    public static String describe(String code, Throwable failure) {
+        sample(failure);
+        return error(code, failure.toString());
+    }
+
+    /**
+     * @return the line to answer an error with, only the first line of
+     * the message is kept
+     */
+    public static String error(String code, String message) {
+        final int newline = message.indexOf('\n');
+        return "ERR " + code + " " + ((newline < 0) ? message : message.substring(0, newline)).trim();
+    }
+
+    private static void sample(Throwable failure) {
+        final Class<?> type = failure.getClass();
+
+        Sample sample = SAMPLES.get(type);
+        if (sample == null) {
+            final Sample created = new Sample();
+            sample = SAMPLES.putIfAbsent(type, created);
+            if (sample == null) sample = created;
+        }
+
+        final long now = System.nanoTime();
+        final long last = sample.logged.get();
+        if (last != 0 && now - last < TimeUnit.MILLISECONDS.toNanos(SAMPLE_MILLIS) || !sample.logged.compareAndSet(last, now)) {
+            sample.suppressed.incrementAndGet();
+            SUPPRESSED.incrementAndGet();
+            return;
+        }
+
+        final long suppressed = sample.suppressed.getAndSet(0);
+        LOGGED.incrementAndGet();
+        LOGGER.log(Level.WARNING, "Command failed" + ((suppressed > 0) ? ", " + suppressed + " more like it not logged" : ""), failure);
+    }
+
+    public static long getLogged() {
+        return LOGGED.get();
+    }
+
+    public static long getSuppressed() {
+        return SUPPRESSED.get();
+    }
+
+    private static class Sample {
+
+        /**
+         * System.nanoTime() of the last trace logged, zero for none
+         */
+        private final AtomicLong logged = new AtomicLong();
+
+        private final AtomicLong suppressed = new AtomicLong();
+    }
+}
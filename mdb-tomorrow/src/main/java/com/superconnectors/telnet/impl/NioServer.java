@@ -0,0 +1,348 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import com.superconnectors.telnet.api.TelnetListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking alternative to the thread-per-connection accept loop
+ * of {@link TelnetServer}.  Accepted connections are spread over a small,
+ * fixed set of selector threads, each of which drives the {@link NioSession}
+ * of every connection assigned to it.
+ *
+ * With commandThreads set, commands run on the command threads and the
+ * selector thread only does the I/O.  With commandThreads at zero they
+ * are executed on the selector thread, so a slow command delays the
+ * other sessions sharing that thread.
+ *
+ * @version $Revision$ $Date$
+ */
+public class NioServer {
+
+    private final TelnetServer server;
+
+    private final IoThread[] ioThreads;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private ServerSocketChannel[] serverChannels;
+
+    private Executor executor;
+
+    public NioServer(TelnetServer server, int threads) {
+        this.server = server;
+        this.ioThreads = new IoThread[threads];
+    }
+
+    /**
+     * Binds the port and hands the accept loop and the selector loops
+     * to the executor.
+     */
+    public void start(int port, Executor executor) throws IOException {
+        this.executor = executor;
+
+        serverChannels = new ServerSocketChannel[server.getAcceptors()];
+        for (int i = 0; i < serverChannels.length; i++) {
+            final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannels[i] = serverChannel;
+            if (serverChannels.length > 1) ReusePort.enable(serverChannel);
+
+            // The first bind picks the port if none was given
+            final int localPort = (i == 0) ? port : serverChannels[0].socket().getLocalPort();
+            serverChannel.socket().bind(new InetSocketAddress(localPort), server.getSpec().getAcceptBacklog());
+        }
+
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread();
+            executor.execute(ioThreads[i]);
+        }
+
+        final Logger logger = Logger.getLogger(NioServer.class.getName());
+        logger.info("Listening on " + serverChannels[0].socket().getLocalPort() + " with " + ioThreads.length + " I/O threads"
+                + ((serverChannels.length > 1) ? " and " + serverChannels.length + " SO_REUSEPORT acceptors" : ""));
+
+        for (final ServerSocketChannel serverChannel : serverChannels) {
+            executor.execute(new StoppableTask() {
+                @Override
+                public void run() {
+                    try {
+                        accept(serverChannel);
+                    } catch (IOException e) {
+                        if (server.isRunning() && serverChannel.isOpen()) e.printStackTrace();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    serverChannel.close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Never waits, for a place among the sessions or for an endpoint: a
+     * connection that has to is handed to a task on the executor, which
+     * registers it once it is let in.  A connection that cannot be taken
+     * is closed and the loop goes on with the next.
+     */
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        while (server.isRunning()) {
+            final SocketChannel channel = serverChannel.accept();
+
+            // Only this connection is lost, the acceptor goes on
+            try {
+                channel.configureBlocking(false);
+                admit(channel);
+            } catch (IOException e) {
+                close(channel);
+            } catch (RuntimeException e) {
+                Logger.getLogger(NioServer.class.getName()).log(Level.WARNING, "Cannot take a connection", e);
+                close(channel);
+            }
+        }
+    }
+
+    private void admit(SocketChannel channel) {
+        final Admission admission = server.getAdmission();
+        if (admission.tryAcquire()) {
+            admitted(channel);
+        } else if (admission.enqueue()) {
+            queued(channel);
+        } else {
+            busy(channel);
+        }
+    }
+
+    private void queued(final SocketChannel channel) {
+        final Admission admission = server.getAdmission();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (admission.await()) {
+                        open(channel);
+                    } else {
+                        busy(channel);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            admission.dequeue();
+            busy(channel);
+        }
+    }
+
+    /**
+     * Passes a connection that has its place to a selector thread if an
+     * idle endpoint is at hand; waiting for or creating one is left to a
+     * task on the executor.
+     */
+    private void admitted(final SocketChannel channel) {
+        final TelnetListener endpoint = server.pollEndpoint();
+        if (endpoint != null) {
+            register(channel, endpoint);
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    open(channel);
+                }
+            });
+        } catch (RuntimeException e) {
+            server.getAdmission().release();
+            busy(channel);
+        }
+    }
+
+    /**
+     * Takes an endpoint, waiting if need be, for a connection that has its
+     * place and passes it to one of the selector threads.
+     */
+    private void open(SocketChannel channel) {
+        final TelnetListener endpoint = server.acquireEndpoint();
+        if (endpoint == null) {
+            server.getAdmission().release();
+            busy(channel);
+            return;
+        }
+
+        register(channel, endpoint);
+    }
+
+    private void register(SocketChannel channel, TelnetListener endpoint) {
+        final int i = (next.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length;
+        ioThreads[i].register(new Accepted(channel, endpoint));
+    }
+
+    public void close() throws IOException {
+        try {
+            if (serverChannels != null) {
+                for (ServerSocketChannel serverChannel : serverChannels) {
+                    if (serverChannel != null) close(serverChannel);
+                }
+            }
+        } finally {
+            for (IoThread ioThread : ioThreads) {
+                if (ioThread != null) ioThread.selector.wakeup();
+            }
+        }
+    }
+
+    private class IoThread implements StoppableTask, Executor {
+
+        private final Selector selector;
+
+        private volatile boolean stopped;
+
+        private final Queue<Accepted> pending = new ConcurrentLinkedQueue<Accepted>();
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        public IoThread() throws IOException {
+            selector = Selector.open();
+        }
+
+        public void register(Accepted accepted) {
+            pending.add(accepted);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs the task on this selector thread, which owns the sessions
+         * registered with it.
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Ends the loop, closing the sessions registered with it.
+         */
+        @Override
+        public void close() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (server.isRunning() && !stopped) {
+                    selector.select();
+
+                    Accepted accepted;
+                    while ((accepted = pending.poll()) != null) {
+                        try {
+                            new NioSession(server, accepted.channel, accepted.endpoint, selector, this);
+                        } catch (IOException e) {
+                            server.getEndpoints().release(accepted.endpoint);
+                            server.getAdmission().release();
+                            NioServer.close(accepted.channel);
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+
+                        final NioSession session = (NioSession) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) session.read();
+                            if (key.isValid() && key.isWritable()) session.write();
+                        } catch (IOException e) {
+                            session.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioSession) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection on its way from the acceptor to a selector thread,
+     * with the endpoint already taken for it.
+     */
+    private static class Accepted {
+
+        private final SocketChannel channel;
+
+        private final TelnetListener endpoint;
+
+        private Accepted(SocketChannel channel, TelnetListener endpoint) {
+            this.channel = channel;
+            this.endpoint = endpoint;
+        }
+    }
+
+    /**
+     * The channel is non-blocking, so this never holds up the caller; the
+     * reply fits in an empty send buffer.
+     */
+    private static void busy(SocketChannel channel) {
+        try {
+            channel.write(ByteBuffer.wrap(TelnetServer.BUSY));
+        } catch (IOException e) {
+            // closing anyway
+        } finally {
+            close(channel);
+        }
+    }
+
+    private static void close(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Size-bounded LRU cache of compiled Patterns, shared by every session so
+ * a pattern polled over and over is compiled once.
+ *
+ * The cache is split into segments by the hash of the pattern, each an
+ * access ordered LinkedHashMap under its own lock, so sessions looking up
+ * different patterns rarely wait on each other.  Each segment evicts its
+ * least recently used pattern once it is full.
+ *
+ * Patterns longer than the limit, or with a quantified group that itself
+ * contains an unbounded quantifier such as {@code (a+)+} or an alternation
+ * such as {@code (a|aa)+}, are rejected before they are compiled; those
+ * are the patterns whose matching can backtrack exponentially.  The check
+ * errs on the safe side, {@code (foo|bar)+} is rejected too.
+ *
+ * @version $Revision$ $Date$
+ */
+public class PatternCache {
+
+    private static final PatternCache SHARED = new PatternCache(256, 256);
+
+    private final Segment[] segments;
+
+    private final int maxLength;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public PatternCache(int capacity, int maxLength) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+
+        final int count = Math.min(Integer.highestOneBit(capacity), 16);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((capacity + count - 1) / count);
+        }
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the cache used for all Pattern arguments
+     */
+    public static PatternCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * @throws PatternSyntaxException if the pattern is invalid or rejected
+     */
+    public Pattern compile(String regex) {
+        final Segment segment = segments[spread(regex.hashCode()) & (segments.length - 1)];
+
+        Pattern pattern;
+        synchronized (segment) {
+            pattern = segment.get(regex);
+        }
+
+        if (pattern != null) {
+            hits.incrementAndGet();
+            return pattern;
+        }
+
+        misses.incrementAndGet();
+
+        try {
+            check(regex);
+        } catch (PatternSyntaxException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+
+        // Compiled outside the lock, two sessions may both compile a new
+        // pattern but the segment is never blocked on a compile
+        pattern = Pattern.compile(regex);
+
+        synchronized (segment) {
+            segment.put(regex, pattern);
+        }
+
+        return pattern;
+    }
+
+    private void check(String regex) {
+        if (regex.length() > maxLength) {
+            throw new PatternSyntaxException("Pattern longer than " + maxLength + " characters", abbreviate(regex), -1);
+        }
+
+        // For each open group, whether it contains an unbounded quantifier
+        // or an alternation
+        final boolean[] unbounded = new boolean[regex.length() + 1];
+        final boolean[] alternation = new boolean[regex.length() + 1];
+        int depth = 0;
+        boolean inClass = false;
+
+        for (int i = 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+
+            if (c == '\\') {
+                i++;
+            } else if (inClass) {
+                if (c == ']') inClass = false;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == '(') {
+                unbounded[++depth] = false;
+                alternation[depth] = false;
+            } else if (c == ')' && depth > 0) {
+                final boolean inner = unbounded[depth];
+                final boolean alternatives = alternation[depth--];
+                if (inner && isQuantifier(regex, i + 1)) {
+                    throw new PatternSyntaxException("Nested quantifiers may backtrack exponentially", regex, i + 1);
+                }
+                if (alternatives && isQuantifier(regex, i + 1)) {
+                    throw new PatternSyntaxException("Quantified alternation may backtrack exponentially", regex, i + 1);
+                }
+                if (inner) unbounded[depth] = true;
+                if (alternatives) alternation[depth] = true;
+            } else if (c == '|') {
+                alternation[depth] = true;
+            } else if (c == '*' || c == '+' || (c == '{' && isUnboundedRange(regex, i))) {
+                unbounded[depth] = true;
+            }
+        }
+    }
+
+    private static boolean isQuantifier(String regex, int i) {
+        if (i >= regex.length()) return false;
+        final char c = regex.charAt(i);
+        return c == '*' || c == '+' || c == '{';
+    }
+
+    private static boolean isUnboundedRange(String regex, int i) {
+        final int close = regex.indexOf('}', i);
+        return close > 0 && regex.charAt(close - 1) == ',';
+    }
+
+    private static String abbreviate(String regex) {
+        return regex.substring(0, Math.min(32, regex.length())) + "...";
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    private class Segment extends LinkedHashMap<String, Pattern> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            if (size() <= capacity) return false;
+
+            evictions.incrementAndGet();
+            return true;
+        }
+    }
+}
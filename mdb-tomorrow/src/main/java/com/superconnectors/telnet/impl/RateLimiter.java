@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets per client address, and optionally per address and
+ * command, so one client cannot take the endpoints from everyone else.
+ *
+ * Each bucket is a single AtomicLong holding the time at which it will be
+ * full again (the generic cell rate algorithm): a command is allowed if
+ * that time is no further ahead than the burst, and moves it on by one
+ * interval.  Checking a bucket is one map lookup and one CAS.
+ *
+ * A bucket that has filled up again is the same as no bucket, so those
+ * are swept out every {@link #EVICT_MILLIS} on the timing wheel; memory
+ * only grows with the clients active within the last burst.
+ *
+ * @version $Revision$ $Date$
+ */
+public class RateLimiter implements TimingWheel.Task {
+
+    static final long EVICT_MILLIS = 5000;
+
+    private final Rate perAddress;
+
+    private final Map<String, Rate> perCommand;
+
+    private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final StripedCounter limited = new StripedCounter();
+
+    private final AtomicLong evicted = new AtomicLong();
+
+    private volatile TimingWheel wheel;
+
+    /**
+     * @param perSecond commands per second per address, zero for no limit
+     * @param burst commands allowed at once after a quiet spell, zero for
+     * one second's worth
+     * @param perCommand commands per second per address for single
+     * commands, each with one second's worth of burst
+     */
+    public RateLimiter(int perSecond, int burst, Map<String, Integer> perCommand) {
+        this.perAddress = (perSecond > 0) ? new Rate(perSecond, (burst > 0) ? burst : perSecond) : null;
+
+        final Map<String, Rate> rates = new LinkedHashMap<String, Rate>();
+        for (Map.Entry<String, Integer> entry : perCommand.entrySet()) {
+            rates.put(entry.getKey(), new Rate(entry.getValue(), entry.getValue()));
+        }
+        this.perCommand = Collections.unmodifiableMap(rates);
+    }
+
+    /**
+     * Parses command rates written as name=perSecond, separated by commas.
+     *
+     * @throws IllegalArgumentException if one is malformed
+     */
+    public static Map<String, Integer> parse(String rates) {
+        final Map<String, Integer> parsed = new LinkedHashMap<String, Integer>();
+        if (rates == null || rates.trim().length() == 0) return parsed;
+
+        for (String rate : rates.split(",")) {
+            final int equals = rate.indexOf('=');
+            if (equals < 0) throw new IllegalArgumentException("expected command=perSecond: " + rate.trim());
+
+            final String name = rate.substring(0, equals).trim();
+            final int perSecond;
+            try {
+                perSecond = Integer.parseInt(rate.substring(equals + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("expected command=perSecond: " + rate.trim());
+            }
+            if (perSecond < 1) throw new IllegalArgumentException("rate must be at least 1: " + rate.trim());
+
+            parsed.put(name, perSecond);
+        }
+        return parsed;
+    }
+
+    /**
+     * @return true if any limit is configured
+     */
+    public boolean isEnabled() {
+        return perAddress != null || !perCommand.isEmpty();
+    }
+
+    /**
+     * Takes a token for one command from the client.
+     *
+     * @return zero if allowed, otherwise the milliseconds until it would be
+     */
+    public long acquire(String address, String command) {
+        final long now = System.nanoTime();
+
+        final Rate rate = perCommand.get(command);
+        final AtomicLong commandBucket = (rate != null) ? bucket(address + '\0' + command, now) : null;
+        if (rate != null) {
+            final long wait = rate.acquire(commandBucket, now);
+            if (wait > 0) return limited(wait);
+        }
+
+        if (perAddress != null) {
+            final long wait = perAddress.acquire(bucket(address, now), now);
+            if (wait > 0) {
+                // Refused after all, so give the command's token back
+                if (rate != null) commandBucket.addAndGet(-rate.intervalNanos);
+                return limited(wait);
+            }
+        }
+
+        return 0;
+    }
+
+    private long limited(long waitNanos) {
+        limited.add(1);
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    private AtomicLong bucket(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            final AtomicLong created = new AtomicLong(now);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) bucket = created;
+        }
+        return bucket;
+    }
+
+    /**
+     * Sweeps out the full buckets now and every {@link #EVICT_MILLIS}
+     * after.
+     */
+    public void start(TimingWheel wheel) {
+        this.wheel = wheel;
+        wheel.schedule(this, EVICT_MILLIS);
+    }
+
+    @Override
+    public void expire() {
+        evictIdle();
+        wheel.schedule(this, EVICT_MILLIS);
+    }
+
+    /**
+     * Removes the buckets that have filled up again.  A command racing
+     * with the removal may go uncounted, never wrongly refused.
+     */
+    public void evictIdle() {
+        final long now = System.nanoTime();
+
+        final Iterator<Map.Entry<String, AtomicLong>> iterator = buckets.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, AtomicLong> entry = iterator.next();
+            if (entry.getValue().get() - now <= 0 && buckets.remove(entry.getKey(), entry.getValue())) {
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    public long getLimited() {
+        return limited.sum();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    private static class Rate {
+
+        private final long intervalNanos;
+
+        private final long toleranceNanos;
+
+        private Rate(int perSecond, int burst) {
+            this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+            this.toleranceNanos = intervalNanos * (burst - 1);
+        }
+
+        /**
+         * @return zero if a token was taken, otherwise the nanoseconds
+         * until one is there
+         */
+        private long acquire(AtomicLong bucket, long now) {
+            while (true) {
+                final long full = bucket.get();
+                final long start = (full - now > 0) ? full : now;
+
+                final long ahead = start - now;
+                if (ahead > toleranceNanos) return ahead - toleranceNanos;
+
+                if (bucket.compareAndSet(full, start + intervalNanos)) return 0;
+            }
+        }
+    }
+}
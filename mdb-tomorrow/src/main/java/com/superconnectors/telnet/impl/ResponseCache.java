@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encoded responses of commands with a cacheTtlMillis, shared by all the
+ * sessions of a server and keyed by the command and its arguments.  A hit
+ * is written as is, without invoking the bean or formatting the result.
+ *
+ * Each segment is a segmented LRU: new entries go to a probationary LRU
+ * and only move to the protected one when they are hit again, so a scan
+ * of one-off arguments evicts other one-off entries rather than the
+ * responses dashboards keep asking for.
+ *
+ * Invalidating a command bumps its generation; entries cached under an
+ * older generation count as misses from then on.  A response computed
+ * while its command was invalidated is therefore never served.
+ *
+ * @version $Revision$ $Date$
+ */
+public class ResponseCache {
+
+    private final Segment[] segments;
+
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResponseCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+
+        final int count = Math.min(Integer.highestOneBit(capacity), 16);
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((capacity + count - 1) / count);
+        }
+    }
+
+    /**
+     * The arguments as typed, without quoting, each prefixed with its
+     * length, so no argument can pass for two whatever it contains.
+     */
+    public static String key(String command, String[] args) {
+        final StringBuilder sb = new StringBuilder(command);
+        for (String arg : args) {
+            sb.append(' ').append(arg.length()).append(':').append(arg);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read before invoking the command and handed to {@link #put}.
+     */
+    public long generation(String command) {
+        return counter(command).get();
+    }
+
+    /**
+     * @return the encoded response, or null
+     */
+    public byte[] get(String command, String key) {
+        final long generation = generation(command);
+        final Segment segment = segment(key);
+
+        final byte[] response;
+        synchronized (segment) {
+            response = segment.get(key, generation, System.nanoTime());
+        }
+
+        if (response == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return response;
+    }
+
+    public void put(String command, String key, long generation, byte[] response, long ttlMillis) {
+        final Entry entry = new Entry(response, generation, System.nanoTime() + ttlMillis * 1000000);
+        final Segment segment = segment(key);
+
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    /**
+     * Drops every response cached for the command.
+     */
+    public void invalidate(String command) {
+        counter(command).incrementAndGet();
+    }
+
+    private AtomicLong counter(String command) {
+        AtomicLong counter = generations.get(command);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = generations.putIfAbsent(command, created);
+            if (counter == null) counter = created;
+        }
+        return counter;
+    }
+
+    private Segment segment(String key) {
+        final int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.probation.size() + segment.protect.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private static class Entry {
+
+        private final byte[] response;
+
+        private final long generation;
+
+        private final long expires;
+
+        private Entry(byte[] response, long generation, long expires) {
+            this.response = response;
+            this.generation = generation;
+            this.expires = expires;
+        }
+    }
+
+    private class Segment {
+
+        private final int protectedCapacity;
+
+        private final int probationCapacity;
+
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private final LinkedHashMap<String, Entry> protect = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private Segment(int capacity) {
+            this.protectedCapacity = Math.max(1, capacity * 4 / 5);
+            this.probationCapacity = Math.max(1, capacity - protectedCapacity);
+        }
+
+        private byte[] get(String key, long generation, long now) {
+            Entry entry = protect.get(key);
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry == null) return null;
+
+                // Second hit, worth keeping
+                protect.put(key, entry);
+                if (protect.size() > protectedCapacity) demote();
+            }
+
+            if (entry.generation != generation || entry.expires - now < 0) {
+                protect.remove(key);
+                return null;
+            }
+
+            return entry.response;
+        }
+
+        private void put(String key, Entry entry) {
+            if (protect.containsKey(key)) {
+                protect.put(key, entry);
+                return;
+            }
+
+            probation.put(key, entry);
+            if (probation.size() > probationCapacity) evict();
+        }
+
+        /**
+         * Moves the least recently used protected entry back to probation
+         */
+        private void demote() {
+            final Iterator<Map.Entry<String, Entry>> eldest = protect.entrySet().iterator();
+            final Map.Entry<String, Entry> entry = eldest.next();
+            eldest.remove();
+
+            probation.put(entry.getKey(), entry.getValue());
+            if (probation.size() > probationCapacity) evict();
+        }
+
+        private void evict() {
+            final Iterator<Map.Entry<String, Entry>> eldest = probation.entrySet().iterator();
+            eldest.next();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+}
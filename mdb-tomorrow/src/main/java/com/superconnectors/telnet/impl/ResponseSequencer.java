@@ -0,0 +1,552 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the responses of one session in the order its commands were
+ * received, although commands returning a Future or CompletionStage
+ * complete whenever they like.
+ *
+ * While no asynchronous command is outstanding a result is printed
+ * straight away.  Otherwise every response takes a slot at the tail and
+ * is delivered once all the slots ahead of it are filled.  A session may
+ * have at most maxOutstanding asynchronous commands in flight; the other
+ * commands take a slot too but do not count against the limit.  Rather
+ * than turn a command away the session stops reading until
+ * {@link #freed} says there is room again.
+ *
+ * A CompletionStage calls back when it completes.  A plain Future cannot,
+ * so the timing wheel checks on it every {@link #POLL_MILLIS} and hands it
+ * to the waiter executor once it is done; no thread is held waiting on
+ * it.  CompletionStage is looked up reflectively so the connector still
+ * runs on JVMs that predate it.
+ *
+ * A result submitted with a {@link Deadline} is cancelled if it is not
+ * done in time, so one stuck command cannot hold up every response
+ * after it.
+ *
+ * @version $Revision$ $Date$
+ */
+public abstract class ResponseSequencer {
+
+    static final long POLL_MILLIS = 100;
+
+    private static final Class<?> COMPLETION_STAGE = load("java.util.concurrent.CompletionStage");
+
+    private static final Class<?> BI_CONSUMER = load("java.util.function.BiConsumer");
+
+    private static final Method WHEN_COMPLETE = method(COMPLETION_STAGE, "whenComplete", BI_CONSUMER);
+
+    private static final Method TO_COMPLETABLE_FUTURE = method(COMPLETION_STAGE, "toCompletableFuture");
+
+    private final int maxOutstanding;
+
+    private final Executor waiter;
+
+    private final TimingWheel wheel;
+
+    private final Executor callbacks;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition room = lock.newCondition();
+
+    private final ArrayDeque<Slot> slots = new ArrayDeque<Slot>();
+
+    private int outstanding;
+
+    /**
+     * @param waiter completes plain Futures once they are done
+     * @param wheel polls plain Futures
+     * @param callbacks runs completions where the session's output may be
+     * written from
+     */
+    public ResponseSequencer(int maxOutstanding, Executor waiter, TimingWheel wheel, Executor callbacks) {
+        this.maxOutstanding = maxOutstanding;
+        this.waiter = waiter;
+        this.wheel = wheel;
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * @return true for Future and CompletionStage return types
+     */
+    public static boolean isAsync(Class<?> type) {
+        return Future.class.isAssignableFrom(type) || (COMPLETION_STAGE != null && COMPLETION_STAGE.isAssignableFrom(type));
+    }
+
+    /**
+     * Blocks until an asynchronous result is done, for callers that need
+     * the value itself.
+     */
+    public static Object await(Object result) throws Throwable {
+        if (COMPLETION_STAGE != null && COMPLETION_STAGE.isInstance(result) && !(result instanceof Future)) {
+            result = TO_COMPLETABLE_FUTURE.invoke(result);
+        }
+
+        if (!(result instanceof Future)) return result;
+
+        try {
+            return ((Future<?>) result).get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Takes one of the session's asynchronous slots.
+     *
+     * @return false if maxOutstanding commands are already in flight
+     */
+    public boolean reserve() {
+        lock.lock();
+        try {
+            if (outstanding >= maxOutstanding) return false;
+            outstanding++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes one of the session's asynchronous slots, waiting for one to be
+     * freed if maxOutstanding commands are in flight.  Not to be called
+     * from the callbacks executor, which is what frees them.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (outstanding >= maxOutstanding) {
+                room.await();
+            }
+            outstanding++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a reserved slot whose command failed to start.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            outstanding--;
+            room.signal();
+        } finally {
+            lock.unlock();
+        }
+        freed();
+    }
+
+    /**
+     * @return true while no further asynchronous command may start
+     */
+    public boolean isFull() {
+        lock.lock();
+        try {
+            return outstanding >= maxOutstanding;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getOutstanding() {
+        lock.lock();
+        try {
+            return outstanding;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prints a result that is already known, after any response still
+     * pending.
+     */
+    public void write(Object result, PrintStream out) {
+        lock.lock();
+        try {
+            if (slots.isEmpty()) {
+                Cmd.print(result, out);
+            } else {
+                final Slot slot = new Slot();
+                slot.response = render(result, null);
+                slots.addLast(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prints one line from the server itself, after any response still
+     * pending.
+     */
+    public void println(String line, PrintStream out) {
+        lock.lock();
+        try {
+            if (slots.isEmpty()) {
+                out.println(line);
+            } else {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final PrintStream buffer = new TelnetPrintStream(bytes);
+                buffer.println(line);
+                buffer.flush();
+
+                final Slot slot = new Slot();
+                slot.response = bytes.toByteArray();
+                slots.addLast(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a response already encoded, after any response still pending.
+     */
+    public void writeEncoded(byte[] response, PrintStream out) {
+        lock.lock();
+        try {
+            if (slots.isEmpty()) {
+                out.write(response, 0, response.length);
+            } else {
+                final Slot slot = new Slot();
+                slot.response = response;
+                slots.addLast(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Prints a command failure in one line, after any response still
+     * pending.
+     *
+     * @see Failures
+     */
+    public void write(Throwable failure, PrintStream out) {
+        lock.lock();
+        try {
+            if (slots.isEmpty()) {
+                out.println(Failures.describe(failure));
+            } else {
+                final Slot slot = new Slot();
+                slot.response = render(null, failure);
+                slots.addLast(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers the result of a Future or CompletionStage when it is done.
+     * The caller has {@link #reserve reserved} a slot for it.
+     */
+    public void submit(Object result) {
+        submit(result, null);
+    }
+
+    /**
+     * As {@link #submit(Object)}, cancelling the result when the deadline
+     * passes or is cancelled; the deadline's message is delivered instead.
+     *
+     * @param deadline null to wait as long as it takes
+     */
+    public void submit(Object result, Deadline deadline) {
+        submit(result, deadline, null);
+    }
+
+    /**
+     * As {@link #submit(Object, Deadline)}, running done once the result
+     * is done, however it ends.
+     */
+    public void submit(Object result, Deadline deadline, Runnable done) {
+        expect(true).complete(result, deadline, done);
+    }
+
+    /**
+     * Takes the next slot for a response that is yet to be worked out,
+     * for instance by a command running on another thread.
+     */
+    public Pending expect() {
+        return expect(false);
+    }
+
+    /**
+     * As {@link #expect()}.
+     *
+     * @param reserved true if the caller has {@link #reserve reserved} a
+     * slot for it, given back once the response is filled in
+     */
+    public Pending expect(boolean reserved) {
+        final Slot slot = new Slot();
+        slot.reserved = reserved;
+
+        lock.lock();
+        try {
+            slots.addLast(slot);
+        } finally {
+            lock.unlock();
+        }
+
+        return new Pending(slot);
+    }
+
+    /**
+     * @return what cancels the result, null if it cannot be cancelled
+     */
+    private static Future<?> future(Object result) {
+        if (result instanceof Future) return (Future<?>) result;
+
+        try {
+            return (Future<?>) TO_COMPLETABLE_FUTURE.invoke(result);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void whenComplete(Object stage, final Slot slot) {
+        final Object action = Proxy.newProxyInstance(BI_CONSUMER.getClassLoader(), new Class<?>[]{BI_CONSUMER}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("accept".equals(method.getName())) {
+                    Throwable failure = (Throwable) args[1];
+                    // CompletionException wraps what the stage failed with
+                    if (failure != null && failure.getCause() != null && "java.util.concurrent.CompletionException".equals(failure.getClass().getName())) {
+                        failure = failure.getCause();
+                    }
+                    completed(slot, args[0], failure);
+                    return null;
+                }
+                if ("equals".equals(method.getName())) return proxy == args[0];
+                if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+                return "ResponseSequencer.whenComplete";
+            }
+        });
+
+        try {
+            WHEN_COMPLETE.invoke(stage, action);
+        } catch (Exception e) {
+            completed(slot, null, e);
+        }
+    }
+
+    private void waitFor(final Future<?> future, final Slot slot) {
+        if (future.isDone()) {
+            complete(future, slot);
+            return;
+        }
+
+        wheel.schedule(new TimingWheel.Task() {
+            @Override
+            public void expire() {
+                if (!future.isDone()) {
+                    wheel.schedule(this, POLL_MILLIS);
+                    return;
+                }
+
+                // Off the wheel, the response may be written right away
+                waiter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        complete(future, slot);
+                    }
+                });
+            }
+        }, POLL_MILLIS);
+    }
+
+    private void complete(Future<?> future, Slot slot) {
+        try {
+            completed(slot, future.get(), null);
+        } catch (ExecutionException e) {
+            completed(slot, null, e.getCause());
+        } catch (Throwable t) {
+            completed(slot, null, t);
+        }
+    }
+
+    private void completed(Slot slot, Object value, Throwable failure) {
+        final Deadline deadline = slot.deadline;
+        filled(slot, (deadline != null && deadline.finish()) ? render(null, deadline.expired()) : render(value, failure));
+    }
+
+    private void filled(final Slot slot, final byte[] response) {
+        final Runnable done = slot.done;
+        if (done != null) done.run();
+
+        callbacks.execute(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    slot.response = response;
+                    if (slot.reserved) {
+                        outstanding--;
+                        room.signal();
+                    }
+
+                    // Everything at the head that is filled can go now
+                    while (!slots.isEmpty() && slots.peekFirst().response != null) {
+                        deliver(slots.pollFirst().response);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (slot.reserved) freed();
+            }
+        });
+    }
+
+    private static byte[] render(Object value, Throwable failure) {
+        if (failure == null) return Cmd.encode(value);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new TelnetPrintStream(bytes);
+        out.println(Failures.describe(failure));
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes one response to the session, in order.  Called with the
+     * sequencer locked, from the callbacks executor.
+     */
+    protected abstract void deliver(byte[] response);
+
+    /**
+     * Called once an asynchronous slot has been given back, from the
+     * callbacks executor, for a session that stopped reading while the
+     * sequencer was {@link #isFull full}.
+     */
+    protected void freed() {
+    }
+
+    /**
+     * A slot in the order of responses, filled exactly once from any
+     * thread.
+     */
+    public class Pending {
+
+        private final Slot slot;
+
+        private Pending(Slot slot) {
+            this.slot = slot;
+        }
+
+        /**
+         * Delivers the result, once it is done if it is a Future or
+         * CompletionStage.
+         *
+         * @param deadline cancels an asynchronous result, may be null
+         */
+        public void complete(Object result, Deadline deadline) {
+            complete(result, deadline, null);
+        }
+
+        /**
+         * As {@link #complete(Object, Deadline)}, running done once the
+         * result is done, however it ends.
+         *
+         * @param done may be null
+         */
+        public void complete(Object result, Deadline deadline, Runnable done) {
+            slot.done = done;
+
+            if (result == null || !isAsync(result.getClass())) {
+                completed(slot, result, null);
+                return;
+            }
+
+            if (deadline != null) {
+                slot.deadline = deadline;
+                final Future<?> future = future(result);
+                if (future != null) deadline.start(future);
+            }
+
+            if (COMPLETION_STAGE != null && COMPLETION_STAGE.isInstance(result)) {
+                whenComplete(result, slot);
+            } else {
+                waitFor((Future<?>) result, slot);
+            }
+        }
+
+        public void completeEncoded(byte[] response) {
+            filled(slot, response);
+        }
+
+        public void fail(Throwable failure) {
+            completed(slot, null, failure);
+        }
+    }
+
+    private static class Slot {
+
+        /**
+         * Counts against maxOutstanding until filled
+         */
+        private boolean reserved;
+
+        /**
+         * Null unless the result is timed
+         */
+        private Deadline deadline;
+
+        /**
+         * Run when the slot is filled, may be null
+         */
+        private Runnable done;
+
+        /**
+         * Null until the command is done
+         */
+        private byte[] response;
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method method(Class<?> type, String name, Class<?>... parameters) {
+        if (type == null) return null;
+        try {
+            return type.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
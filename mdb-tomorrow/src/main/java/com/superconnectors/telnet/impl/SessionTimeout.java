@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idle and lifetime limits of one session, tracked with a single timeout
+ * on the {@link TimingWheel}.  Activity only records a timestamp; when the
+ * timeout fires it checks the real deadlines and either expires the session
+ * or schedules itself again for whichever deadline is now the nearest.
+ *
+ * A session is not idle while a command is running.  If the session is
+ * still open a grace period after it expired, it is aborted.
+ *
+ * @version $Revision$ $Date$
+ */
+abstract class SessionTimeout implements TimingWheel.Task {
+
+    static final String IDLE = "idle timeout, goodbye";
+
+    static final String LIFETIME = "session lifetime exceeded, goodbye";
+
+    private static final long GRACE_MILLIS = 5000;
+
+    private final TimingWheel wheel;
+
+    private final long idleNanos;
+
+    private final long lifetimeNanos;
+
+    private final long started = System.nanoTime();
+
+    private volatile long lastActivity = started;
+
+    private volatile boolean busy;
+
+    private volatile String reason;
+
+    private volatile boolean cancelled;
+
+    private volatile TimingWheel.Timeout timeout;
+
+    /**
+     * @param idleMillis zero or less for no idle limit
+     * @param lifetimeMillis zero or less for no lifetime limit
+     */
+    SessionTimeout(TimingWheel wheel, long idleMillis, long lifetimeMillis) {
+        this.wheel = wheel;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(lifetimeMillis);
+    }
+
+    void start() {
+        schedule(System.nanoTime());
+    }
+
+    void begin() {
+        busy = true;
+        lastActivity = System.nanoTime();
+    }
+
+    void end() {
+        lastActivity = System.nanoTime();
+        busy = false;
+    }
+
+    void cancel() {
+        cancelled = true;
+        final TimingWheel.Timeout timeout = this.timeout;
+        if (timeout != null) timeout.cancel();
+    }
+
+    /**
+     * @return the goodbye message, or null while the session hasn't expired
+     */
+    String getReason() {
+        return reason;
+    }
+
+    @Override
+    public void expire() {
+        if (cancelled) return;
+
+        if (reason != null) {
+            abort();
+            return;
+        }
+
+        final long now = System.nanoTime();
+
+        if (lifetimeNanos > 0 && now - started >= lifetimeNanos) {
+            expire(LIFETIME);
+        } else if (idleNanos > 0 && !busy && now - lastActivity >= idleNanos) {
+            expire(IDLE);
+        } else {
+            schedule(now);
+        }
+    }
+
+    private void expire(String reason) {
+        this.reason = reason;
+        timeout = wheel.schedule(this, GRACE_MILLIS);
+        expired();
+    }
+
+    private void schedule(long now) {
+        long next = Long.MAX_VALUE;
+        if (lifetimeNanos > 0) next = Math.min(next, started + lifetimeNanos);
+        if (idleNanos > 0) next = Math.min(next, (busy ? now : lastActivity) + idleNanos);
+
+        timeout = wheel.schedule(this, TimeUnit.NANOSECONDS.toMillis(Math.max(0, next - now)));
+    }
+
+    /**
+     * Called on the wheel thread; must not block.  The session is expected
+     * to write {@link #getReason()} to the client and close.
+     */
+    protected abstract void expired();
+
+    /**
+     * Called if the session is still open {@link #GRACE_MILLIS} after it
+     * expired, typically because the client stopped reading.
+     */
+    protected abstract void abort();
+}
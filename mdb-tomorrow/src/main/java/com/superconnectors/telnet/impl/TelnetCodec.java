@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Strips telnet commands out of the input in place and answers option
+ * negotiation.  Runs of plain data are scanned in a tight loop and moved
+ * with a single arraycopy, so text without IAC bytes costs one pass and
+ * no copying at all.
+ *
+ * Commands may be split across calls; the parser state is kept between
+ * them.  Subnegotiation (SB ... IAC SE) is skipped entirely.  Interrupt
+ * Process is handed to the session, which stops its running commands.
+ *
+ * @version $Revision$ $Date$
+ */
+public class TelnetCodec implements TelnetCodes {
+
+    private static final byte IAC_BYTE = (byte) IAC;
+
+    private static final int DATA = 0;
+    private static final int COMMAND = 1;
+    private static final int OPTION = 2;
+    private static final int SUBNEGOTIATION = 3;
+    private static final int SUBNEGOTIATION_IAC = 4;
+
+    private final TelnetOption[] options = new TelnetOption[256];
+
+    private final OutputStream replies;
+
+    private final Runnable interrupt;
+
+    private int state = DATA;
+
+    private int verb;
+
+    private boolean replied;
+
+    /**
+     * @param replies where negotiation replies are written
+     */
+    public TelnetCodec(OutputStream replies) {
+        this(replies, null);
+    }
+
+    /**
+     * @param interrupt run for each Interrupt Process, may be null
+     */
+    public TelnetCodec(OutputStream replies, Runnable interrupt) {
+        this.replies = replies;
+        this.interrupt = interrupt;
+    }
+
+    /**
+     * Decodes the bytes between position and limit of a heap buffer.  On
+     * return the same range holds only data; the limit is moved back by
+     * the number of command bytes removed.
+     */
+    public void decode(ByteBuffer buffer) throws IOException {
+        final int position = buffer.position();
+        final int length = decode(buffer.array(), buffer.arrayOffset() + position, buffer.remaining());
+        buffer.limit(position + length);
+    }
+
+    /**
+     * Decodes len bytes starting at off in place.
+     *
+     * @return the number of data bytes now starting at off
+     */
+    public int decode(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        int w = off;
+        int r = off;
+
+        while (r < end) {
+            if (state == DATA) {
+                int i = r;
+                while (i < end && b[i] != IAC_BYTE) i++;
+
+                if (w != r) System.arraycopy(b, r, b, w, i - r);
+                w += i - r;
+
+                if (i == end) break;
+
+                state = COMMAND;
+                r = i + 1;
+                continue;
+            }
+
+            final int c = b[r++] & 0xFF;
+
+            switch (state) {
+                case COMMAND:
+                    switch (c) {
+                        case WILL:
+                        case WONT:
+                        case DO:
+                        case DONT:
+                            verb = c;
+                            state = OPTION;
+                            break;
+                        case SB:
+                            state = SUBNEGOTIATION;
+                            break;
+                        case IAC:
+                            b[w++] = IAC_BYTE;
+                            state = DATA;
+                            break;
+                        case Interrupt_Process:
+                            if (interrupt != null) interrupt.run();
+                            state = DATA;
+                            break;
+                        default:
+                            state = DATA;
+                            break;
+                    }
+                    break;
+                case OPTION:
+                    option(verb, c);
+                    state = DATA;
+                    break;
+                case SUBNEGOTIATION:
+                    if (c == IAC) state = SUBNEGOTIATION_IAC;
+                    break;
+                case SUBNEGOTIATION_IAC:
+                    state = (c == SE) ? DATA : SUBNEGOTIATION;
+                    break;
+            }
+        }
+
+        // Replies can't wait for the next prompt to be flushed
+        if (replied) {
+            replied = false;
+            replies.flush();
+        }
+
+        return w - off;
+    }
+
+    private void option(int verb, int optionID) throws IOException {
+        final TelnetOption option = getOption(optionID);
+
+        if (option.hasBeenNegotiated()) return;
+
+        switch (verb) {
+            case WILL:
+                if (option.isInNegotiation()) {
+                    option.enable();
+                } else if (option.isSupported()) {
+                    reply(DO, optionID);
+                    option.enable();
+                } else {
+                    reply(DONT, optionID);
+                    option.disable();
+                }
+                break;
+            case DO:
+                if (option.isInNegotiation()) {
+                    option.enable();
+                } else if (option.isSupported()) {
+                    reply(WILL, optionID);
+                    option.enable();
+                } else {
+                    reply(WONT, optionID);
+                    option.disable();
+                }
+                break;
+            case WONT:
+                if (!option.isInNegotiation()) {
+                    reply(DONT, optionID);
+                }
+                option.disable();
+                break;
+            case DONT:
+                if (!option.isInNegotiation()) {
+                    reply(WONT, optionID);
+                }
+                option.disable();
+                break;
+        }
+    }
+
+    private void reply(int negotiate, int optionID) throws IOException {
+        negotiateOption(negotiate, optionID);
+        replied = true;
+    }
+
+    public void negotiateOption(int negotiate, int optionID) throws IOException {
+        getOption(optionID).inNegotiation = true;
+
+        // One write keeps the sequence intact without holding a monitor
+        // across the blocking socket write
+        replies.write(new byte[]{IAC_BYTE, (byte) negotiate, (byte) optionID});
+    }
+
+    private TelnetOption getOption(int optionID) {
+        TelnetOption opt = options[optionID];
+        if (opt == null) {
+            opt = new TelnetOption(optionID);
+            options[optionID] = opt;
+        }
+        return opt;
+    }
+}
@@ -19,122 +19,549 @@ package com.superconnectors.telnet.impl;
 import com.superconnectors.telnet.adapter.TelnetActivationSpec;
 import com.superconnectors.telnet.api.TelnetListener;
 
+import javax.resource.ResourceException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class TelnetServer implements TtyCodes {
 
-    private final TelnetListener listener;
+    private static final long TIMEOUT_TICK_MILLIS = 100;
+
+    static final byte[] BUSY = (Failures.error(Failures.BUSY, "server busy, try again later") + "\r\n").getBytes();
+
+    private static final String OVERLOADED = ": server overloaded, try again later";
+
+    /**
+     * Runs tasks on the calling thread
+     */
+    private static final Executor CALLER = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final EndpointPool endpoints;
 
     private final TelnetActivationSpec spec;
 
     private final int port;
 
+    private final Executor executor;
+
+    private final Admission admission;
+
+    private final byte[] promptBytes;
+
     private final Map<String, Cmd> cmds = new TreeMap<String, Cmd>();
 
+    private final CommandTable commands;
+
+    private final ResponseCache responseCache;
+
+    private final CommandScheduler scheduler;
+
+    private final AdaptiveLimiter limiter;
+
+    private final RateLimiter rateLimiter;
+
     private final AtomicBoolean running = new AtomicBoolean();
-    private ServerSocket serverSocket;
+    private ServerSocket[] serverSockets;
+    private NioServer nioServer;
+    private TimingWheel timingWheel;
 
     public TelnetServer(TelnetActivationSpec spec, TelnetListener listener, int port) {
+        this(spec, new EndpointPool(listener), port, new ThreadPerTaskExecutor());
+    }
+
+    public TelnetServer(TelnetActivationSpec spec, TelnetListener listener, int port, Executor executor) {
+        this(spec, new EndpointPool(listener), port, executor);
+    }
+
+    public TelnetServer(TelnetActivationSpec spec, EndpointPool endpoints, int port) {
+        this(spec, endpoints, port, new ThreadPerTaskExecutor());
+    }
+
+    /**
+     * @param endpoints each session takes its endpoint from this pool
+     * @param executor runs the accept loop and the sessions, typically
+     * backed by the container's WorkManager
+     */
+    public TelnetServer(TelnetActivationSpec spec, EndpointPool endpoints, int port, Executor executor) {
         this.port = port;
         this.spec = spec;
-        this.listener = listener;
+        this.endpoints = endpoints;
+        this.executor = executor;
+        this.admission = new Admission(spec.getMaxSessions(), spec.getQueueWaitMillis());
+        this.promptBytes = (TTY_Reset + TTY_Bright + spec.getPrompt() + " " + TTY_Reset).getBytes();
 
         for (Cmd cmd : spec.getCmds()) {
+            cmd.setBreaker(new CircuitBreaker(spec.getBreakerFailures(), spec.getBreakerOpenMillis()));
             this.cmds.put(cmd.getName(), cmd);
         }
 
         try {
             cmds.put("help", new BuiltInCmd("help", this.getClass().getMethod("help", String.class)));
             cmds.put("exit", new BuiltInCmd("exit", this.getClass().getMethod("exit")));
+            cmds.put("stats", new BuiltInCmd("stats", this.getClass().getMethod("stats")));
+            cmds.put("begin", new SessionCmd("begin") {
+                @Override
+                public void exec(SessionContext session, String[] args, PrintStream out) {
+                    begin(session, out);
+                }
+            });
+            cmds.put("commit", new SessionCmd("commit") {
+                @Override
+                public void exec(SessionContext session, String[] args, PrintStream out) {
+                    commit(session, out);
+                }
+            });
+            cmds.put("abort", new SessionCmd("abort") {
+                @Override
+                public void exec(SessionContext session, String[] args, PrintStream out) {
+                    abort(session, out);
+                }
+            });
         } catch (NoSuchMethodException e) {
             e.printStackTrace();
         }
+
+        this.commands = new CommandTable(cmds.values());
+
+        boolean caching = false;
+        for (Cmd cmd : cmds.values()) {
+            caching |= cmd.getSettings().getCacheTtlMillis() > 0;
+        }
+        this.responseCache = (caching && spec.getResponseCacheSize() > 0) ? new ResponseCache(spec.getResponseCacheSize()) : null;
+        this.scheduler = (spec.getCommandThreads() > 0) ? new CommandScheduler(spec.getCommandThreads(), executor) : null;
+        this.limiter = (spec.getMaxInflight() > 0) ? new AdaptiveLimiter(spec.getMaxInflight()) : null;
+
+        final RateLimiter rates = new RateLimiter(spec.getRateLimit(), spec.getRateBurst(), RateLimiter.parse(spec.getCommandRateLimits()));
+        this.rateLimiter = rates.isEnabled() ? rates : null;
+    }
+
+    public EndpointPool getEndpoints() {
+        return endpoints;
     }
 
-    public TelnetListener getListener() {
-        return listener;
+    public int getPort() {
+        return port;
     }
 
+    public TelnetActivationSpec getSpec() {
+        return spec;
+    }
+
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Binds the port and hands the accept loop to the executor.  Returns
+     * as soon as the port is bound.
+     */
     public void activate() throws IOException {
         if (running.compareAndSet(false, true)) {
-            serverSocket = new ServerSocket(port);
+            // Session timeouts and command deadlines
+            timingWheel = new TimingWheel(TIMEOUT_TICK_MILLIS, 512);
+            executor.execute(timingWheel);
+            if (rateLimiter != null) rateLimiter.start(timingWheel);
+            endpoints.start(timingWheel, executor);
+
+            if (spec.getIoThreads() > 0) {
+                nioServer = new NioServer(this, spec.getIoThreads());
+                try {
+                    nioServer.start(port, executor);
+                } catch (IOException e) {
+                    deactivate();
+                    throw e;
+                }
+                return;
+            }
+
+            final ThreadFactory threadFactory = spec.isVirtualThreads() ? virtualThreadFactory() : null;
+
+            serverSockets = new ServerSocket[getAcceptors()];
+            try {
+                for (int i = 0; i < serverSockets.length; i++) {
+                    final ServerSocket serverSocket = new ServerSocket();
+                    serverSockets[i] = serverSocket;
+                    if (serverSockets.length > 1) ReusePort.enable(serverSocket);
+
+                    // The first bind picks the port if none was given
+                    final int localPort = (i == 0) ? port : serverSockets[0].getLocalPort();
+                    serverSocket.bind(new InetSocketAddress(localPort), spec.getAcceptBacklog());
+                }
+            } catch (IOException e) {
+                deactivate();
+                throw e;
+            }
+
+            final Logger logger = Logger.getLogger(TelnetServer.class.getName());
+            logger.info("Listening on " + serverSockets[0].getLocalPort()
+                    + ((serverSockets.length > 1) ? " with " + serverSockets.length + " SO_REUSEPORT acceptors" : ""));
+
+            for (final ServerSocket serverSocket : serverSockets) {
+                executor.execute(new StoppableTask() {
+                    @Override
+                    public void run() {
+                        accept(serverSocket, threadFactory);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        serverSocket.close();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Number of listening sockets to bind, one unless SO_REUSEPORT is
+     * available and more were asked for.
+     */
+    int getAcceptors() {
+        if (spec.getAcceptors() > 1 && !ReusePort.isSupported()) {
             final Logger logger = Logger.getLogger(TelnetServer.class.getName());
-            logger.info("Listening on " + serverSocket.getLocalPort());
+            logger.warning("SO_REUSEPORT is not supported by this JVM or platform, using a single acceptor");
+            return 1;
+        }
+        return Math.max(1, spec.getAcceptors());
+    }
+
+    /**
+     * Only takes connections and hands them to their session task, which
+     * does the waiting: for a place among the sessions and for an
+     * endpoint.  A connection that may not even wait is told the server is
+     * busy right here; the few bytes fit in any fresh socket's buffer.
+     */
+    private void accept(ServerSocket serverSocket, ThreadFactory threadFactory) {
+        try {
             while (running.get()) {
                 final Socket accept = serverSocket.accept();
-                final Thread thread = new Thread() {
+
+                final boolean admitted = admission.tryAcquire();
+                if (!admitted && !admission.enqueue()) {
+                    busy(accept);
+                    continue;
+                }
+
+                final StoppableTask task = new StoppableTask() {
                     @Override
                     public void run() {
+                        if (!admitted && !admission.await()) {
+                            busy(accept);
+                            return;
+                        }
+
+                        final TelnetListener endpoint = acquireEndpoint();
+                        if (endpoint == null) {
+                            admission.release();
+                            busy(accept);
+                            return;
+                        }
+
                         try {
-                            session(accept);
+                            session(accept, endpoint);
                         } catch (IOException e) {
                             e.printStackTrace();
+                        } finally {
+                            endpoints.release(endpoint);
+                            admission.release();
                         }
                     }
+
+                    @Override
+                    public void close() throws IOException {
+                        accept.close();
+                    }
                 };
-                thread.start();
+
+                try {
+                    if (threadFactory != null) {
+                        threadFactory.newThread(task).start();
+                    } else {
+                        executor.execute(task);
+                    }
+                } catch (RuntimeException e) {
+                    // Only this connection is lost, the acceptor goes on
+                    if (!(e instanceof RejectedExecutionException)) {
+                        Logger.getLogger(TelnetServer.class.getName()).log(Level.WARNING, "Cannot start a session", e);
+                    }
+                    if (admitted) {
+                        admission.release();
+                    } else {
+                        admission.dequeue();
+                    }
+                    close(accept);
+                }
+            }
+        } catch (IOException e) {
+            if (running.get() && !serverSocket.isClosed()) e.printStackTrace();
+        }
+    }
+
+    /**
+     * Takes the endpoint a new session keeps until it closes.
+     *
+     * @return null if the session must be turned away
+     */
+    TelnetListener acquireEndpoint() {
+        try {
+            return endpoints.acquire();
+        } catch (ResourceException e) {
+            final Logger logger = Logger.getLogger(TelnetServer.class.getName());
+            logger.warning("Cannot create a message endpoint: " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            final Logger logger = Logger.getLogger(TelnetServer.class.getName());
+            logger.log(Level.WARNING, "Cannot create a message endpoint", e);
+            return null;
+        }
+    }
+
+    /**
+     * Takes an idle endpoint without waiting or creating one.
+     *
+     * @return null if {@link #acquireEndpoint()} has to be called instead
+     */
+    TelnetListener pollEndpoint() {
+        return endpoints.poll();
+    }
+
+    private static void busy(Socket socket) {
+        try {
+            socket.getOutputStream().write(BUSY);
+        } catch (IOException e) {
+            // closing anyway
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
             }
         }
     }
 
     public void deactivate() throws IOException {
         if (running.compareAndSet(true, false)) {
+            if (timingWheel != null) timingWheel.stop();
+
             try {
-                serverSocket.close();
+                if (nioServer != null) {
+                    nioServer.close();
+                } else if (serverSockets != null) {
+                    for (ServerSocket serverSocket : serverSockets) {
+                        if (serverSocket != null) serverSocket.close();
+                    }
+                }
             } catch (IOException e) {
             }
         }
     }
 
-    public void session(Socket socket) throws IOException {
+    /**
+     * Looked up reflectively so the connector still runs on JVMs that
+     * predate virtual threads; those fall back to platform threads.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        final Logger logger = Logger.getLogger(TelnetServer.class.getName());
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            logger.warning("Virtual threads are not supported by this JVM, using platform threads");
+            return null;
+        }
+    }
+
+    boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return null until the server is activated
+     */
+    TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Runs the accept loop and sessions; also waits on plain Futures
+     * returned by asynchronous commands.
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return null unless commands run on their own threads
+     */
+    CommandScheduler getScheduler() {
+        return scheduler;
+    }
+
+    byte[] getPromptBytes() {
+        return promptBytes;
+    }
+
+    /**
+     * @param endpoint the bean instance serving this session only
+     */
+    public void session(final Socket socket, TelnetListener endpoint) throws IOException {
         InputStream telnetIn = null;
         PrintStream telnetOut = null;
+        SessionTimeout timeout = null;
+        CommandScheduler.Queue queue = null;
 
         try {
             final InputStream in = socket.getInputStream();
-            final OutputStream out = socket.getOutputStream();
+            // Everything a command prints, the blank line after it and the
+            // next prompt leave in one write when the prompt is flushed
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream(), spec.getOutputBufferSize());
 
-            telnetIn = new TelnetInputStream(in, out);
             telnetOut = new TelnetPrintStream(out);
 
+            // Asynchronous results are written by whichever thread
+            // completes them, under the sequencer's lock
+            final PrintStream sessionOut = telnetOut;
+            final ResponseSequencer responses = new ResponseSequencer(spec.getMaxOutstanding(), executor, timingWheel, CALLER) {
+                @Override
+                protected void deliver(byte[] response) {
+                    sessionOut.write(response, 0, response.length);
+                    sessionOut.flush();
+                }
+            };
+
+            final SessionContext session = new SessionContext(endpoint, responses, timingWheel, spec.getCommandTimeoutMillis());
+            session.setRemoteAddress(socket.getInetAddress().getHostAddress());
+
+            final TelnetInputStream input = new TelnetInputStream(in, out, new Runnable() {
+                @Override
+                public void run() {
+                    session.interrupt();
+                }
+            });
+            telnetIn = input;
+
+            if (scheduler != null) {
+                queue = scheduler.newQueue();
+                session.setQueue(queue);
+            } else {
+                // While a command holds this thread the wheel has an eye
+                // kept on the input, so an Interrupt Process still gets
+                // through; the reading is done on the executor
+                session.setPoll(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            input.poll();
+                        } catch (IOException e) {
+                            // the session's own read will see it
+                        }
+                    }
+                }, executor);
+            }
+
+            if (spec.getIdleTimeoutMillis() > 0 || spec.getMaxLifetimeMillis() > 0) {
+                // Ending the input wakes the session thread out of its read,
+                // it then says goodbye and closes like on any other exit
+                timeout = new SessionTimeout(timingWheel, spec.getIdleTimeoutMillis(), spec.getMaxLifetimeMillis()) {
+                    @Override
+                    protected void expired() {
+                        try {
+                            socket.shutdownInput();
+                        } catch (IOException e) {
+                            abort();
+                        }
+                    }
+
+                    @Override
+                    protected void abort() {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                };
+                timeout.start();
+            }
+
             telnetOut.println("");
             telnetOut.println("type \'help\' for a list of commands");
 
 
-            final DataInputStream dataInputStream = new DataInputStream(telnetIn);
+            final LineDecoder lines = new LineDecoder(spec.getMaxLineLength());
 
             while (running.get()) {
 
-                prompt(dataInputStream, telnetOut);
+                prompt(telnetIn, lines, session, telnetOut, timeout);
 
             }
 
         } catch (StopException s) {
             // exit normally
+            if (timeout != null && timeout.getReason() != null) {
+                telnetOut.println(timeout.getReason());
+                telnetOut.flush();
+            }
         } catch (Throwable t) {
-            t.printStackTrace();
+            // an aborted session just goes away
+            if (timeout == null || timeout.getReason() == null) t.printStackTrace();
         } finally {
+            if (queue != null) drain(queue);
+            if (timeout != null) timeout.cancel();
             close(telnetIn);
             close(telnetOut);
             if (socket != null) socket.close();
         }
     }
 
+    /**
+     * Waits for the commands the session queued before it ended, so their
+     * responses are written and its endpoint is no longer in use when it
+     * goes back to the pool.
+     */
+    private static void drain(CommandScheduler.Queue queue) {
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.close(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        boolean interrupted = false;
+        while (done.getCount() > 0) {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
     private static void close(Closeable closeable) {
         if (closeable == null) return;
 
@@ -145,58 +572,281 @@ public class TelnetServer implements TtyCodes {
         }
     }
 
-    protected void prompt(DataInputStream in, PrintStream out) throws StopException {
+    /**
+     * @param timeout null when the session has no idle or lifetime limit
+     */
+    protected void prompt(InputStream in, LineDecoder lines, SessionContext session, PrintStream out, SessionTimeout timeout) throws StopException {
 
         try {
 
-            out.print(TTY_Reset + TTY_Bright + spec.getPrompt() + " " + TTY_Reset);
+            // After the responses still pending, so no prompt overtakes
+            // the answer to the command before it
+            session.getResponses().writeEncoded(promptBytes, out);
+
+            out.flush();
+
+            // Pipelined, every line the client has already sent runs before
+            // the next prompt and all the output goes back in one write
+            do {
+
+                final CharSequence commandline = lines.readLine(in);
+
+                if (commandline == null) throw new StopException();
+
+                if (timeout != null) timeout.begin();
+                try {
+                    dispatch(commandline, session, out);
+                } finally {
+                    if (timeout != null) timeout.end();
+                }
+
+            } while (spec.isPipelined() && lines.hasLine(in));
 
+        } catch (StopException stop) {
             out.flush();
+            throw stop;
+        } catch (LineDecoder.LineTooLongException e) {
 
-            final String commandline = in.readLine().trim();
+            session.getResponses().println(Failures.describe(e), out);
 
-            if (commandline.length() < 1) return;
+        } catch (UnsupportedOperationException e) {
 
-            final List<String> list = new ArrayList<String>();
-            Collections.addAll(list, commandline.split(" +"));
+            throw new StopException(e);
 
-            final String command = list.remove(0);
+        } catch (IOException e) {
 
-            final String[] args = list.toArray(new String[list.size()]);
+            // The connection is gone, nobody to answer
+            throw new StopException(e);
 
-            final Cmd cmd = cmds.get(command);
+        } catch (Throwable e) {
 
-            if (cmd == null) {
+            out.println(Failures.describe(Failures.INTERNAL, e));
+
+            throw new StopException(e);
+
+        }
+    }
+
+    /**
+     * Executes one command line and writes the result to out.  Shared by
+     * the blocking sessions and the non-blocking {@link NioSession}, each
+     * of which passes in its own context.
+     */
+    protected void dispatch(CharSequence commandline, SessionContext session, PrintStream out) throws StopException {
+
+        final Tokenizer tokens = session.getTokens();
+
+        if (tokens.tokenize(commandline) == 0) return;
 
-                out.print(command);
+        final char[] chars = tokens.chars();
 
-                out.println(": command not found");
+        final Cmd cmd = commands.find(chars, tokens.start(0), tokens.end(0));
 
+        if (cmd == null) {
+
+            final StringBuilder sb = new StringBuilder(tokens.token(0));
+
+            final List<Cmd> candidates = commands.candidates(chars, tokens.start(0), tokens.end(0));
+            final String code;
+            if (candidates.size() > 1) {
+                code = Failures.AMBIGUOUS;
+                sb.append(": ambiguous command, could be: ");
+                for (int i = 0; i < candidates.size(); i++) {
+                    if (i > 0) sb.append(", ");
+                    sb.append(candidates.get(i).getName());
+                }
             } else {
+                code = Failures.NOT_FOUND;
+                sb.append(": command not found");
+            }
 
-                try {
-                    cmd.exec(listener, args, out);
-                } catch (StopException stop) {
-                    throw stop;
-                } catch (Throwable throwable) {
-                    throwable.printStackTrace(out);
+            session.getResponses().println(Failures.error(code, sb.toString()), out);
+
+        } else {
+
+            final ResponseSequencer responses = session.getResponses();
+
+            // The commands of a batch are counted as they are queued, so
+            // opening and closing it is as free as the other built-ins
+            final boolean limited = rateLimiter != null && !(cmd instanceof BuiltInCmd) && !(cmd instanceof SessionCmd);
+            final long wait = limited ? rateLimiter.acquire(session.getRemoteAddress(), cmd.getName()) : 0;
+
+            try {
+                if (wait > 0) {
+                    responses.println(Failures.error(Failures.RATE_LIMITED, cmd.getName() + ": rate limit exceeded, try again in " + wait + " ms"), out);
+                } else if (cmd instanceof SessionCmd) {
+                    ((SessionCmd) cmd).exec(session, tokens.tokens(1), out);
+                } else if (session.getBatch() != null && !(cmd instanceof BuiltInCmd)) {
+                    queue(session, cmd, tokens.tokens(1), out);
+                } else if (cmd instanceof BuiltInCmd) {
+                    responses.write(cmd.call(session.getEndpoint(), tokens.tokens(1), session.deadline(cmd)), out);
+                } else if (limiter != null && !limiter.acquire()) {
+                    responses.println(Failures.error(Failures.OVERLOADED, cmd.getName() + OVERLOADED), out);
+                } else if (session.getQueue() != null) {
+                    schedule(cmd, session, tokens.tokens(1), out);
+                } else if (cmd.isAsync()) {
+                    try {
+                        async(cmd, session, tokens.tokens(1), out, System.nanoTime());
+                    } finally {
+                        invalidate(cmd);
+                    }
+                } else {
+                    final long start = System.nanoTime();
+                    try {
+                        if (responseCache != null && cmd.getSettings().getCacheTtlMillis() > 0) {
+                            cached(cmd, session, tokens.tokens(1), out);
+                        } else {
+                            responses.write(cmd.call(session.getEndpoint(), tokens.tokens(1), session.deadline(cmd)), out);
+                        }
+                    } finally {
+                        release(start);
+                        invalidate(cmd);
+                    }
                 }
+            } catch (StopException stop) {
+                throw stop;
+            } catch (Throwable throwable) {
+                responses.write(throwable, out);
+            }
+
+        }
+    }
+
+    /**
+     * Writes the cached response to the same arguments if there is one,
+     * otherwise runs the command and caches what it printed.
+     */
+    private void cached(Cmd cmd, SessionContext session, String[] args, PrintStream out) throws Throwable {
+        session.getResponses().writeEncoded(cachedResponse(cmd, session, args), out);
+    }
+
+    private byte[] cachedResponse(Cmd cmd, SessionContext session, String[] args) throws Throwable {
+        final String key = ResponseCache.key(cmd.getName(), args);
+
+        byte[] response = responseCache.get(cmd.getName(), key);
+        if (response == null) {
+            final long generation = responseCache.generation(cmd.getName());
+            response = Cmd.encode(cmd.call(session.getEndpoint(), args, session.deadline(cmd)));
+            responseCache.put(cmd.getName(), key, generation, response, cmd.getSettings().getCacheTtlMillis());
+        }
 
+        return response;
+    }
+
+    /**
+     * Tells the {@link AdaptiveLimiter}, if any, that a command it let
+     * through is done.
+     */
+    private void release(long start) {
+        if (limiter != null) limiter.release(start);
+    }
+
+    /**
+     * @return what releases the limiter once an asynchronous result is
+     * done, null if there is no limiter
+     */
+    private Runnable releasing(final long start) {
+        if (limiter == null) return null;
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                limiter.release(start);
             }
+        };
+    }
 
+    /**
+     * Drops the cached responses of the commands the one that ran
+     * declares it invalidates.
+     */
+    private void invalidate(Cmd cmd) {
+        if (responseCache == null) return;
 
-        } catch (StopException stop) {
-            throw stop;
-        } catch (UnsupportedOperationException e) {
+        for (String command : cmd.getSettings().getInvalidates()) {
+            responseCache.invalidate(command);
+        }
+    }
 
-            throw new StopException(e);
+    /**
+     * Starts a command returning a Future or CompletionStage.  The session
+     * goes on reading commands and the result is written once it is done
+     * and every response ahead of it has been written.  The limiter is
+     * released only then, so asynchronous work counts against it too.
+     */
+    private void async(Cmd cmd, SessionContext session, String[] args, PrintStream out, long start) throws Throwable {
+        final ResponseSequencer responses = session.getResponses();
 
-        } catch (Throwable e) {
+        try {
+            responses.acquire();
+        } catch (InterruptedException e) {
+            release(start);
+            throw e;
+        }
+
+        final Object result;
+        try {
+            result = cmd.call(session.getEndpoint(), args, session.deadline(cmd));
+        } catch (Throwable t) {
+            responses.release();
+            release(start);
+            throw t;
+        }
 
-            e.printStackTrace(new PrintStream(out));
+        // The result gets a deadline of its own
+        responses.submit(result, session.deadline(cmd), releasing(start));
+    }
 
-            throw new StopException(e);
+    /**
+     * Hands a bean command to the command threads.  The session goes on
+     * reading and the response is written in order once it is done.  Only
+     * a command returning a Future or CompletionStage counts against the
+     * session's maxOutstanding, waiting for a slot if need be.
+     */
+    private void schedule(final Cmd cmd, final SessionContext session, final String[] args, PrintStream out) throws InterruptedException, NoSuchMethodException {
+        final ResponseSequencer responses = session.getResponses();
+        final long start = System.nanoTime();
+        final boolean async = cmd.isAsync();
 
+        if (async) {
+            try {
+                responses.acquire();
+            } catch (InterruptedException e) {
+                release(start);
+                throw e;
+            }
+        }
+
+        final ResponseSequencer.Pending pending = responses.expect(async);
+        session.getQueue().execute(new Runnable() {
+            @Override
+            public void run() {
+                // An asynchronous result releases the limiter when done
+                boolean released = false;
+                try {
+                    if (responseCache != null && cmd.getSettings().getCacheTtlMillis() > 0) {
+                        pending.completeEncoded(cachedResponse(cmd, session, args));
+                    } else if (cmd.isAsync()) {
+                        final Object result = cmd.call(session.getEndpoint(), args, session.deadline(cmd));
+                        released = true;
+                        pending.complete(result, session.deadline(cmd), releasing(start));
+                    } else {
+                        pending.complete(cmd.call(session.getEndpoint(), args, session.deadline(cmd)), null);
+                    }
+                } catch (Throwable throwable) {
+                    pending.fail(throwable);
+                } finally {
+                    if (!released) release(start);
+                    invalidate(cmd);
+                }
+            }
+        }, cmd.getSettings().getPriority());
+    }
+
+    private static class ThreadPerTaskExecutor implements Executor {
+        @Override
+        public void execute(Runnable command) {
+            new Thread(command).start();
         }
     }
 
@@ -206,9 +856,130 @@ public class TelnetServer implements TtyCodes {
         }
 
         @Override
-        public void exec(Object impl, String[] args, PrintStream out) throws Throwable {
-            super.exec(TelnetServer.this, args, out);
+        public Object call(Object impl, String[] args, Deadline deadline) throws Throwable {
+            return super.call(TelnetServer.this, args, deadline);
+        }
+    }
+
+    /**
+     * Built-ins that act on the session rather than on the bean or the
+     * server.
+     */
+    private abstract static class SessionCmd extends Cmd {
+        private SessionCmd(String name) {
+            super(name, usage(name, new String[0]));
+        }
+
+        public abstract void exec(SessionContext session, String[] args, PrintStream out) throws Throwable;
+    }
+
+    /**
+     * Starts queuing bean commands until commit or abort.  The built-ins
+     * still run straight away.
+     */
+    private void begin(SessionContext session, PrintStream out) {
+        if (session.getBatch() != null) {
+            session.getResponses().println(Failures.error(Failures.BATCH_OPEN, "batch already open with " + session.getBatch().size() + " commands"), out);
+            return;
+        }
+
+        session.setBatch(new Batch(spec.getMaxBatchSize()));
+        session.getResponses().println("batch open, commit to run or abort to discard", out);
+    }
+
+    private void queue(SessionContext session, Cmd cmd, String[] args, PrintStream out) {
+        final Batch batch = session.getBatch();
+        if (batch.add(cmd, args)) {
+            session.getResponses().println("queued " + batch.size(), out);
+        } else {
+            session.getResponses().println(Failures.error(Failures.BATCH_FULL, "batch full, " + cmd.getName() + " not queued"), out);
+        }
+    }
+
+    private void commit(SessionContext session, PrintStream out) {
+        final Batch batch = session.getBatch();
+        if (batch == null) {
+            session.getResponses().println(Failures.error(Failures.NO_BATCH, "no batch open"), out);
+            return;
+        }
+
+        // Kept open so the client can commit again later
+        if (limiter != null && !limiter.acquire()) {
+            session.getResponses().println(Failures.error(Failures.OVERLOADED, "commit" + OVERLOADED), out);
+            return;
+        }
+
+        session.setBatch(null);
+
+        if (session.getQueue() != null) {
+            schedule(batch, session, out);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            session.getResponses().writeEncoded(run(batch, session), out);
+        } finally {
+            release(start);
+        }
+    }
+
+    /**
+     * Runs a committed batch on the command threads, at the highest
+     * priority of the commands in it.
+     */
+    private void schedule(final Batch batch, final SessionContext session, PrintStream out) {
+        final ResponseSequencer responses = session.getResponses();
+        final long start = System.nanoTime();
+
+        int priority = CommandScheduler.LOW;
+        for (Cmd cmd : batch.getCmds()) {
+            priority = Math.max(priority, cmd.getSettings().getPriority());
+        }
+
+        final ResponseSequencer.Pending pending = responses.expect();
+        session.getQueue().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pending.completeEncoded(TelnetServer.this.run(batch, session));
+                } finally {
+                    release(start);
+                }
+            }
+        }, priority);
+    }
+
+    /**
+     * @return everything the batch printed, written after any response
+     * still pending like that of a single command
+     */
+    private byte[] run(Batch batch, SessionContext session) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new TelnetPrintStream(bytes);
+        try {
+            batch.run(session, out);
+        } catch (Throwable throwable) {
+            out.println(Failures.describe(throwable));
+        } finally {
+            for (Cmd cmd : batch.getCmds()) {
+                invalidate(cmd);
+            }
         }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void abort(SessionContext session, PrintStream out) {
+        final Batch batch = session.getBatch();
+        if (batch == null) {
+            session.getResponses().println(Failures.error(Failures.NO_BATCH, "no batch open"), out);
+            return;
+        }
+
+        session.setBatch(null);
+        session.getResponses().println("discarded " + batch.size() + " commands", out);
     }
 
     public String help(String arg) {
@@ -219,25 +990,82 @@ public class TelnetServer implements TtyCodes {
                 sb.append(s).append("\n");
             }
         } else {
-            final Cmd cmd = cmds.get(arg);
+            final Cmd cmd = commands.find(arg);
             if (cmd == null) {
                 sb.append("Unkown command: ").append(arg);
             } else {
-                final Method method = cmd.getMethod();
+                sb.append(cmd.getUsage());
+            }
+        }
 
-                sb.append(cmd.getName()).append(" ");
+        return sb.toString();
+    }
 
-                final Class<?>[] types = method.getParameterTypes();
-                for (Class<?> type : types) {
-                    sb.append("<").append(type.getSimpleName().toLowerCase()).append(">").append(" ");
-                }
+    public String stats() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("sessions.active = ").append(admission.getActive()).append("\n");
+        sb.append("sessions.queued = ").append(admission.getQueued()).append("\n");
+        sb.append("sessions.rejected = ").append(admission.getRejected()).append("\n");
+        sb.append("endpoints.created = ").append(endpoints.getCreated()).append("\n");
+        sb.append("endpoints.idle = ").append(endpoints.getIdle()).append("\n");
+        sb.append("endpoints.active = ").append(endpoints.getActive()).append("\n");
+        sb.append("endpoints.peak = ").append(endpoints.getPeak()).append("\n");
+        sb.append("endpoints.waiting = ").append(endpoints.getWaiting()).append("\n");
+        sb.append("endpoints.timeouts = ").append(endpoints.getTimeouts()).append("\n");
+        sb.append("endpoints.evicted = ").append(endpoints.getEvicted()).append("\n");
 
-                if (types.length == 0) {
-                    sb.append("[no options]");
-                }
-            }
+        for (Cmd cmd : cmds.values()) {
+            final Bulkhead bulkhead = cmd.getBulkhead();
+            if (bulkhead.getPeak() == 0) continue;
+
+            sb.append("commands.").append(cmd.getName()).append(".running = ").append(bulkhead.getRunning()).append("\n");
+            sb.append("commands.").append(cmd.getName()).append(".peak = ").append(bulkhead.getPeak()).append("\n");
+            sb.append("commands.").append(cmd.getName()).append(".busy = ").append(bulkhead.getBusy()).append("\n");
+
+            final CircuitBreaker breaker = cmd.getBreaker();
+            if (!breaker.isEnabled()) continue;
+
+            sb.append("commands.").append(cmd.getName()).append(".breaker = ").append(breaker.getState()).append("\n");
+            sb.append("commands.").append(cmd.getName()).append(".opened = ").append(breaker.getOpened()).append("\n");
+            sb.append("commands.").append(cmd.getName()).append(".rejected = ").append(breaker.getRejected()).append("\n");
+        }
+
+        sb.append("errors.logged = ").append(Failures.getLogged()).append("\n");
+        sb.append("errors.suppressed = ").append(Failures.getSuppressed()).append("\n");
+
+        if (responseCache != null) {
+            sb.append("responses.cached = ").append(responseCache.size()).append("\n");
+            sb.append("responses.hits = ").append(responseCache.getHits()).append("\n");
+            sb.append("responses.misses = ").append(responseCache.getMisses()).append("\n");
+            sb.append("responses.evictions = ").append(responseCache.getEvictions()).append("\n");
+        }
+
+        if (scheduler != null) {
+            sb.append("scheduler.workers = ").append(scheduler.getWorkers()).append("\n");
+            sb.append("scheduler.queued = ").append(scheduler.getQueued()).append("\n");
+            sb.append("scheduler.executed = ").append(scheduler.getExecuted()).append("\n");
         }
 
+        if (limiter != null) {
+            sb.append("limiter.limit = ").append(limiter.getLimit()).append("\n");
+            sb.append("limiter.inflight = ").append(limiter.getInflight()).append("\n");
+            sb.append("limiter.shed = ").append(limiter.getShed()).append("\n");
+            sb.append("limiter.latencyMillis = ").append(limiter.getLatencyMillis()).append("\n");
+            sb.append("limiter.noLoadLatencyMillis = ").append(limiter.getNoLoadLatencyMillis()).append("\n");
+        }
+
+        if (rateLimiter != null) {
+            sb.append("rates.buckets = ").append(rateLimiter.size()).append("\n");
+            sb.append("rates.limited = ").append(rateLimiter.getLimited()).append("\n");
+            sb.append("rates.evicted = ").append(rateLimiter.getEvicted()).append("\n");
+        }
+
+        final PatternCache patterns = PatternCache.getShared();
+        sb.append("patterns.cached = ").append(patterns.size()).append("\n");
+        sb.append("patterns.hits = ").append(patterns.getHits()).append("\n");
+        sb.append("patterns.misses = ").append(patterns.getMisses()).append("\n");
+        sb.append("patterns.evictions = ").append(patterns.getEvictions()).append("\n");
+        sb.append("patterns.rejected = ").append(patterns.getRejected()).append("\n");
         return sb.toString();
     }
 
@@ -245,12 +1073,24 @@ public class TelnetServer implements TtyCodes {
         throw new StopException();
     }
 
+    /**
+     * Ends the session.  It is control flow, not an error, so it carries
+     * no stack trace.
+     */
     public static class StopException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
         public StopException() {
         }
 
         public StopException(Throwable cause) {
             super(cause);
         }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel.  Timeouts are hashed by their deadline tick into a
+ * fixed ring of buckets and one thread advances the ring a bucket per
+ * tick, so scheduling and cancelling are O(1) and a tick only looks at the
+ * timeouts in a single bucket, however many are outstanding.
+ *
+ * New timeouts go through a queue and only the tick thread touches the
+ * buckets.  Cancelled timeouts are unlinked when their bucket comes round.
+ * Deadlines are honoured to within one tick; tasks run on the tick thread
+ * and must not block.
+ *
+ * @version $Revision$ $Date$
+ */
+public class TimingWheel implements StoppableTask {
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+
+    private final Timeout[] wheel;
+
+    private final int mask;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+    private final long startTime = System.nanoTime();
+
+    private volatile boolean running = true;
+
+    private long tick;
+
+    /**
+     * @param ticksPerWheel rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int ticksPerWheel) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        int size = 1;
+        while (size < ticksPerWheel) size <<= 1;
+
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+
+        // Each bucket is a circular list around a sentinel
+        for (int i = 0; i < size; i++) {
+            final Timeout head = new Timeout(null, 0);
+            head.next = head;
+            head.previous = head;
+            wheel[i] = head;
+        }
+    }
+
+    public Timeout schedule(Task task, long delayMillis) {
+        final long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        final Timeout timeout = new Timeout(task, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            final long deadline = (tick + 1) * tickNanos;
+
+            long sleep;
+            while ((sleep = deadline - (System.nanoTime() - startTime)) > 0 && running) {
+                LockSupport.parkNanos(this, sleep);
+            }
+
+            transferPending();
+
+            expire(wheel[(int) (tick & mask)]);
+
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state.get() == CANCELLED) continue;
+
+            final long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / wheel.length;
+
+            final Timeout head = wheel[(int) (ticks & mask)];
+            timeout.previous = head.previous;
+            timeout.next = head;
+            head.previous.next = timeout;
+            head.previous = timeout;
+        }
+    }
+
+    private void expire(Timeout head) {
+        Timeout timeout = head.next;
+        while (timeout != head) {
+            final Timeout next = timeout.next;
+
+            if (timeout.state.get() == CANCELLED) {
+                timeout.unlink();
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                timeout.unlink();
+                if (timeout.state.compareAndSet(WAITING, EXPIRED)) {
+                    try {
+                        timeout.task.expire();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                }
+            }
+
+            timeout = next;
+        }
+    }
+
+    public static interface Task {
+        void expire();
+    }
+
+    public static class Timeout {
+
+        private final Task task;
+
+        private final long deadline;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private long rounds;
+
+        private Timeout next;
+
+        private Timeout previous;
+
+        private Timeout(Task task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task already ran
+         */
+        public boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED) || state.get() == CANCELLED;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            next = null;
+            previous = null;
+        }
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.processor;
+
+import com.superconnectors.telnet.api.Command;
+import com.superconnectors.telnet.api.Prompt;
+import com.superconnectors.telnet.impl.Cmd;
+import com.superconnectors.telnet.impl.Dispatcher;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Generates a {@link Dispatcher} for every class with @Command methods,
+ * declared or inherited, so activation finds the commands, their usage
+ * text and the calls without scanning the bean reflectively.
+ *
+ * The generated {@code <Bean>$$TelnetDispatcher} switches on the command
+ * name, converts each argument with a handle it resolves once from the
+ * Converters, and calls the bean method directly.
+ *
+ * @version $Revision$ $Date$
+ */
+@SupportedAnnotationTypes("com.superconnectors.telnet.api.Command")
+public class CommandProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final Set<TypeElement> beans = new LinkedHashSet<TypeElement>();
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(Command.class)) {
+            beans.add((TypeElement) element.getEnclosingElement());
+        }
+
+        // Beans that only inherit their commands
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            if (type.getKind() == ElementKind.CLASS && type.getModifiers().contains(Modifier.PUBLIC) && !commands(type).isEmpty()) {
+                beans.add(type);
+            }
+        }
+
+        for (TypeElement bean : beans) {
+            try {
+                generate(bean, commands(bean));
+            } catch (IOException e) {
+                error(bean, "Cannot write the dispatcher: " + e.getMessage());
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the @Command methods of the bean, inherited ones included,
+     * like Class.getMethods() finds them; an override without @Command
+     * is not a command
+     */
+    private List<ExecutableElement> commands(TypeElement bean) {
+        final List<ExecutableElement> methods = new ArrayList<ExecutableElement>();
+        for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(bean))) {
+            if (method.getAnnotation(Command.class) != null) methods.add(method);
+        }
+        return methods;
+    }
+
+    private void generate(TypeElement bean, List<ExecutableElement> methods) throws IOException {
+        if (!bean.getModifiers().contains(Modifier.PUBLIC)) {
+            error(bean, "@Command beans must be public");
+            return;
+        }
+
+        // Sorted by name, like the commands listed by help
+        final Map<String, ExecutableElement> commands = new TreeMap<String, ExecutableElement>();
+        for (ExecutableElement method : methods) {
+            if (!method.getModifiers().contains(Modifier.PUBLIC) || method.getModifiers().contains(Modifier.STATIC)) {
+                error(method, "@Command methods must be public instance methods");
+                return;
+            }
+
+            final String name = method.getAnnotation(Command.class).value();
+            if (commands.put(name, method) != null) {
+                error(method, "Duplicate command " + name);
+                return;
+            }
+        }
+
+        final String packageName = processingEnv.getElementUtils().getPackageOf(bean).getQualifiedName().toString();
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(bean).toString();
+        final String simpleName = binaryName.substring(packageName.length() == 0 ? 0 : packageName.length() + 1) + Dispatcher.SUFFIX;
+        final String beanType = bean.getQualifiedName().toString();
+
+        final Prompt prompt = bean.getAnnotation(Prompt.class);
+
+        final PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(binaryName + Dispatcher.SUFFIX, bean).openWriter());
+        try {
+            if (packageName.length() > 0) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+
+            out.println("/**");
+            out.println(" * Generated by " + CommandProcessor.class.getName() + " from " + beanType + ", do not edit.");
+            out.println(" */");
+            out.println("public final class " + simpleName + " implements com.superconnectors.telnet.impl.Dispatcher {");
+            out.println();
+            out.println("    public static final String PROMPT = " + literal(prompt == null ? null : prompt.value()) + ";");
+            out.println();
+
+            // Commands and usage text
+            final List<String> names = new ArrayList<String>(commands.keySet());
+            out.println("    private static final String[] COMMANDS = {");
+            for (String name : names) {
+                out.println("        " + literal(name) + ",");
+            }
+            out.println("    };");
+            out.println();
+            out.println("    private static final String[] USAGE = {");
+            for (String name : names) {
+                out.println("        " + literal(Cmd.usage(name, simpleTypeNames(commands.get(name)))) + ",");
+            }
+            out.println("    };");
+            out.println();
+
+            // One converter per parameter
+            for (int c = 0; c < names.size(); c++) {
+                final List<? extends VariableElement> parameters = commands.get(names.get(c)).getParameters();
+                for (int p = 0; p < parameters.size(); p++) {
+                    out.println("    private final java.lang.invoke.MethodHandle " + converter(c, p) + ";");
+                }
+            }
+            out.println();
+            out.println("    public " + simpleName + "(com.superconnectors.telnet.impl.Converters converters) {");
+            for (int c = 0; c < names.size(); c++) {
+                final List<? extends VariableElement> parameters = commands.get(names.get(c)).getParameters();
+                for (int p = 0; p < parameters.size(); p++) {
+                    out.println("        " + converter(c, p) + " = converters.find(" + classLiteral(parameters.get(p).asType()) + ");");
+                }
+            }
+            out.println("    }");
+            out.println();
+
+            out.println("    public String getPrompt() {");
+            out.println("        return PROMPT;");
+            out.println("    }");
+            out.println();
+            out.println("    public String[] getCommands() {");
+            out.println("        return COMMANDS.clone();");
+            out.println("    }");
+            out.println();
+            out.println("    public String getUsage(String command) {");
+            out.println("        final int i = java.util.Arrays.binarySearch(COMMANDS, command);");
+            out.println("        return (i < 0) ? null : USAGE[i];");
+            out.println("    }");
+            out.println();
+
+            // Every attribute of each @Command, so none is read reflectively
+            out.println("    public java.util.Map<String, Object> getAttributes(String command) {");
+            out.println("        final java.util.Map<String, Object> attributes = new java.util.HashMap<String, Object>();");
+            out.println("        switch (command) {");
+            for (String name : names) {
+                out.println("            case " + literal(name) + ":");
+                for (Map.Entry<String, String> attribute : attributes(commands.get(name)).entrySet()) {
+                    out.println("                attributes.put(" + literal(attribute.getKey()) + ", " + attribute.getValue() + ");");
+                }
+                out.println("                return attributes;");
+            }
+            out.println("            default:");
+            out.println("                throw new IllegalArgumentException(\"Unknown command: \" + command);");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+
+            // Dispatch
+            out.println("    public Object dispatch(Object target, String command, String[] args) throws Throwable {");
+            out.println("        final " + beanType + " bean = (" + beanType + ") target;");
+            out.println("        switch (command) {");
+            for (int c = 0; c < names.size(); c++) {
+                final ExecutableElement method = commands.get(names.get(c));
+                final List<? extends VariableElement> parameters = method.getParameters();
+
+                final StringBuilder call = new StringBuilder();
+                call.append("bean.").append(method.getSimpleName()).append("(");
+                for (int p = 0; p < parameters.size(); p++) {
+                    if (p > 0) call.append(", ");
+                    final TypeMirror type = parameters.get(p).asType();
+                    call.append("(").append(processingEnv.getTypeUtils().erasure(type)).append(") ");
+                    call.append(converter(c, p)).append(".invokeExact(arg(args, ").append(p).append("))");
+                }
+                call.append(")");
+
+                out.println("            case " + literal(names.get(c)) + ":");
+                if (method.getReturnType().getKind() == TypeKind.VOID) {
+                    out.println("                " + call + ";");
+                    out.println("                return null;");
+                } else {
+                    out.println("                return " + call + ";");
+                }
+            }
+            out.println("            default:");
+            out.println("                throw new IllegalArgumentException(\"Unknown command: \" + command);");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+
+            out.println("    public java.lang.reflect.Method getMethod(String command) throws NoSuchMethodException {");
+            out.println("        switch (command) {");
+            for (String name : names) {
+                final ExecutableElement method = commands.get(name);
+                final StringBuilder lookup = new StringBuilder();
+                lookup.append(beanType).append(".class.getMethod(").append(literal(method.getSimpleName().toString()));
+                for (VariableElement parameter : method.getParameters()) {
+                    lookup.append(", ").append(classLiteral(parameter.asType()));
+                }
+                lookup.append(")");
+
+                out.println("            case " + literal(name) + ":");
+                out.println("                return " + lookup + ";");
+            }
+            out.println("            default:");
+            out.println("                throw new NoSuchMethodException(command);");
+            out.println("        }");
+            out.println("    }");
+            out.println();
+
+            out.println("    private static String arg(String[] args, int index) {");
+            out.println("        return (index < args.length) ? args[index] : null;");
+            out.println("    }");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the source literal of each @Command attribute, defaults
+     * included, by attribute name
+     */
+    private Map<String, String> attributes(ExecutableElement method) {
+        final Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+        for (AnnotationMirror mirror : method.getAnnotationMirrors()) {
+            final TypeElement type = (TypeElement) mirror.getAnnotationType().asElement();
+            if (!type.getQualifiedName().contentEquals(Command.class.getName())) continue;
+
+            final Map<? extends ExecutableElement, ? extends AnnotationValue> values = processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+                attributes.put(entry.getKey().getSimpleName().toString(), literal(entry.getKey().getReturnType(), entry.getValue().getValue()));
+            }
+        }
+
+        return attributes;
+    }
+
+    private String literal(TypeMirror type, Object value) {
+        if (value instanceof String) return literal((String) value);
+        if (value instanceof Long) return value + "L";
+        if (value instanceof Float) return value + "F";
+        if (value instanceof Character) return "'" + value + "'";
+
+        if (value instanceof List) {
+            final StringBuilder sb = new StringBuilder("new ").append(processingEnv.getTypeUtils().erasure(type)).append("{");
+            final TypeMirror component = ((ArrayType) type).getComponentType();
+            final List<?> values = (List<?>) value;
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(literal(component, ((AnnotationValue) values.get(i)).getValue()));
+            }
+            return sb.append("}").toString();
+        }
+
+        if (value instanceof VariableElement) {
+            return processingEnv.getTypeUtils().erasure(type) + "." + ((VariableElement) value).getSimpleName();
+        }
+
+        return String.valueOf(value);
+    }
+
+    private String[] simpleTypeNames(ExecutableElement method) {
+        final List<? extends VariableElement> parameters = method.getParameters();
+        final String[] names = new String[parameters.size()];
+        for (int i = 0; i < names.length; i++) {
+            final TypeMirror type = processingEnv.getTypeUtils().erasure(parameters.get(i).asType());
+            if (type.getKind().isPrimitive()) {
+                names[i] = type.toString();
+            } else {
+                final String name = type.toString();
+                names[i] = name.substring(name.lastIndexOf('.') + 1);
+            }
+        }
+        return names;
+    }
+
+    private String classLiteral(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type) + ".class";
+    }
+
+    private static String converter(int command, int parameter) {
+        return "c" + command + "_" + parameter;
+    }
+
+    private static String literal(String value) {
+        if (value == null) return "null";
+
+        final StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                default:
+                    if (c < ' ' || c > '~') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
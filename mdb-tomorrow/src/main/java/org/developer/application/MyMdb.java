@@ -29,6 +29,8 @@ import java.util.regex.Pattern;
 @Prompt("pronto>")
 public class MyMdb implements TelnetListener {
 
+    private static final Pattern ALL = Pattern.compile(".*");
+
     private final Properties properties = new Properties();
 
     @Command("get")
@@ -50,10 +52,10 @@ public class MyMdb implements TelnetListener {
         return sb.toString();
     }
 
-    @Command("list")
+    @Command(value = "list", maxConcurrency = 4, maxWaitMillis = 100)
     public String doList(@Option("pattern") Pattern pattern) {
 
-        if (pattern == null) pattern = Pattern.compile(".*");
+        if (pattern == null) pattern = ALL;
         final StringBuilder sb = new StringBuilder();
         for (Map.Entry<Object, Object> entry : properties.entrySet()) {
             final String key = entry.getKey().toString();
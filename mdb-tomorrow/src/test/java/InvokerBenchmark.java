@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import com.superconnectors.telnet.impl.Converters;
+import com.superconnectors.telnet.impl.Invoker;
+
+import java.lang.reflect.Method;
+
+/**
+ * Compares the reflective and the compiled {@link Invoker} on commands
+ * with zero, one and two arguments.  Both include the conversion of the
+ * command line arguments, as Cmd.exec does; add(int, int) shows the
+ * primitive parsers.
+ *
+ * Not a unit test; run it by hand:
+ *
+ *   java -cp ... InvokerBenchmark [millionCalls]
+ *
+ * @version $Revision$ $Date$
+ */
+public class InvokerBenchmark {
+
+    public static class Bean {
+        public String zero() {
+            return "zero";
+        }
+
+        public String one(String a) {
+            return a;
+        }
+
+        public String two(String a, Integer b) {
+            return a;
+        }
+
+        public int add(int a, int b) {
+            return a + b;
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        final int calls = ((args.length > 0) ? Integer.parseInt(args[0]) : 10) * 1000000;
+
+        final Bean bean = new Bean();
+        final Method zero = Bean.class.getMethod("zero");
+        final Method one = Bean.class.getMethod("one", String.class);
+        final Method two = Bean.class.getMethod("two", String.class, Integer.class);
+        final Method add = Bean.class.getMethod("add", int.class, int.class);
+        final Converters converters = new Converters(InvokerBenchmark.class.getClassLoader());
+
+        final String[] none = {};
+        final String[] a = {"a"};
+        final String[] ab = {"a", "42"};
+        final String[] numbers = {"40", "2"};
+
+        for (int i = 0; i < 3; i++) {
+            System.out.println("-- round " + (i + 1));
+            report("reflective  zero()", calls, run(Invoker.reflective(zero, converters), bean, none, calls));
+            report("compiled    zero()", calls, run(Invoker.compile(zero, converters), bean, none, calls));
+            report("reflective  one(String)", calls, run(Invoker.reflective(one, converters), bean, a, calls));
+            report("compiled    one(String)", calls, run(Invoker.compile(one, converters), bean, a, calls));
+            report("reflective  two(String, Integer)", calls, run(Invoker.reflective(two, converters), bean, ab, calls));
+            report("compiled    two(String, Integer)", calls, run(Invoker.compile(two, converters), bean, ab, calls));
+            report("reflective  add(int, int)", calls, run(Invoker.reflective(add, converters), bean, numbers, calls));
+            report("compiled    add(int, int)", calls, run(Invoker.compile(add, converters), bean, numbers, calls));
+        }
+    }
+
+    private static long run(Invoker invoker, Object bean, String[] args, int calls) throws Throwable {
+        final long start = System.nanoTime();
+        int sum = 0;
+        for (int i = 0; i < calls; i++) {
+            sum += (invoker.invoke(bean, args) != null) ? 1 : 0;
+        }
+        consume(sum);
+        return System.nanoTime() - start;
+    }
+
+    private static volatile long sink;
+
+    private static void consume(long value) {
+        sink += value;
+    }
+
+    private static void report(String name, int calls, long nanos) {
+        System.out.printf("%-34s %8.1f ns/call%n", name, (double) nanos / calls);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import com.superconnectors.telnet.adapter.TelnetActivationSpec;
+import com.superconnectors.telnet.impl.TelnetServer;
+import org.developer.application.MyMdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens many concurrent sessions against an in-process TelnetServer, first
+ * leaving them idle and then driving commands through all of them, once
+ * with the classic thread-per-session accept loop and once with virtual
+ * threads.
+ *
+ * Not a unit test; run it by hand with a raised open file limit:
+ *
+ *   java -cp ... SessionBenchmark [sessions] [commandsPerSession]
+ *
+ * @version $Revision$ $Date$
+ */
+public class SessionBenchmark {
+
+    private static final byte[] PROMPT_END = "> \u001b[0m".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        final int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        final int commands = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+        run("platform threads", false, sessions, commands);
+        run("virtual threads", true, sessions, commands);
+    }
+
+    private static void run(String name, boolean virtualThreads, int sessions, final int commands) throws Exception {
+        final int port = freePort();
+
+        final TelnetActivationSpec spec = new TelnetActivationSpec();
+        spec.setBeanClass(MyMdb.class);
+        spec.setVirtualThreads(virtualThreads);
+        spec.validate();
+
+        final TelnetServer server = new TelnetServer(spec, new MyMdb(), port);
+        server.activate();
+
+        System.gc();
+        final int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        final long heapBefore = usedHeap();
+
+        // Idle phase
+        long start = System.nanoTime();
+        final List<Socket> sockets = new ArrayList<Socket>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            final Socket socket = new Socket("localhost", port);
+            awaitPrompt(socket.getInputStream());
+            sockets.add(socket);
+        }
+        final long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.gc();
+        final int threadsIdle = ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore;
+        final long heapIdle = usedHeap() - heapBefore;
+
+        // Active phase
+        final ExecutorService clients = Executors.newFixedThreadPool(64);
+        final AtomicInteger failures = new AtomicInteger();
+        start = System.nanoTime();
+        for (final Socket socket : sockets) {
+            clients.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final OutputStream out = socket.getOutputStream();
+                        final InputStream in = socket.getInputStream();
+                        for (int i = 0; i < commands; i++) {
+                            out.write("get greeting\r\n".getBytes());
+                            out.flush();
+                            awaitPrompt(in);
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        clients.shutdown();
+        clients.awaitTermination(1, TimeUnit.HOURS);
+        final long activeNanos = System.nanoTime() - start;
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.deactivate();
+
+        final long total = (long) sessions * commands;
+        System.out.printf("%-17s %6d sessions  connect %6d ms  idle threads %6d  idle heap %6d KB  " +
+                "%8.0f commands/s  failures %d%n",
+                name, sessions, connectMillis, threadsIdle, heapIdle / 1024,
+                total / (activeNanos / 1e9), failures.get());
+    }
+
+    private static void awaitPrompt(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < PROMPT_END.length) {
+            final int b = in.read();
+            if (b < 0) throw new IOException("Connection closed");
+            if (b == (PROMPT_END[matched] & 0xFF)) {
+                matched++;
+            } else {
+                matched = (b == (PROMPT_END[0] & 0xFF)) ? 1 : 0;
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int freePort() throws IOException {
+        final ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+import com.superconnectors.telnet.impl.TelnetCodec;
+import com.superconnectors.telnet.impl.TelnetCodes;
+import com.superconnectors.telnet.impl.TelnetInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares the ways input can be pulled through the telnet layer: one
+ * byte at a time through TelnetInputStream.read() as DataInputStream.readLine
+ * does, bulk reads through TelnetInputStream, and TelnetCodec directly on a
+ * ByteBuffer.  The input is scripted command lines with a negotiation
+ * every few lines.
+ *
+ * Not a unit test; run it by hand:
+ *
+ *   java -cp ... TelnetCodecBenchmark [megabytes]
+ *
+ * @version $Revision$ $Date$
+ */
+public class TelnetCodecBenchmark implements TelnetCodes {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        final int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        final byte[] input = input(megabytes * 1024 * 1024);
+
+        for (int i = 0; i < 3; i++) {
+            System.out.println("-- round " + (i + 1));
+            report("TelnetInputStream.read()", input, readByteAtATime(input));
+            report("DataInputStream.readLine", input, readLines(input));
+            report("TelnetInputStream.read(byte[])", input, readBulk(input));
+            report("TelnetCodec.decode(ByteBuffer)", input, decode(input));
+        }
+    }
+
+    private static long readByteAtATime(byte[] input) throws IOException {
+        final InputStream in = new TelnetInputStream(new ByteArrayInputStream(input), DISCARD);
+        final long start = System.nanoTime();
+        long sum = 0;
+        int b;
+        while ((b = in.read()) != -1) sum += b;
+        consume(sum);
+        return System.nanoTime() - start;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long readLines(byte[] input) throws IOException {
+        final DataInputStream in = new DataInputStream(new TelnetInputStream(new ByteArrayInputStream(input), DISCARD));
+        final long start = System.nanoTime();
+        long sum = 0;
+        String line;
+        while ((line = in.readLine()) != null) sum += line.length();
+        consume(sum);
+        return System.nanoTime() - start;
+    }
+
+    private static long readBulk(byte[] input) throws IOException {
+        final InputStream in = new TelnetInputStream(new ByteArrayInputStream(input), DISCARD);
+        final byte[] buffer = new byte[8192];
+        final long start = System.nanoTime();
+        long sum = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) sum += n;
+        consume(sum);
+        return System.nanoTime() - start;
+    }
+
+    private static long decode(byte[] input) throws IOException {
+        final TelnetCodec codec = new TelnetCodec(DISCARD);
+        final byte[] copy = input.clone();
+        final long start = System.nanoTime();
+        long sum = 0;
+        for (int off = 0; off < copy.length; off += 8192) {
+            final ByteBuffer buffer = ByteBuffer.wrap(copy, off, Math.min(8192, copy.length - off));
+            codec.decode(buffer);
+            sum += buffer.remaining();
+        }
+        consume(sum);
+        return System.nanoTime() - start;
+    }
+
+    private static byte[] input(int size) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size + 64);
+        final byte[] line = "set some.key some-longer-value-for-the-key\r\n".getBytes();
+        int option = 0;
+        while (out.size() < size) {
+            out.write(line, 0, line.length);
+            if (out.size() % 8 == 0) {
+                out.write(IAC);
+                out.write(WILL);
+                out.write(option++ & 0xFF);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static volatile long sink;
+
+    private static void consume(long value) {
+        sink += value;
+    }
+
+    private static void report(String name, byte[] input, long nanos) {
+        System.out.printf("%-32s %8.1f MB/s%n", name, input.length / 1048576.0 / (nanos / 1e9));
+    }
+}
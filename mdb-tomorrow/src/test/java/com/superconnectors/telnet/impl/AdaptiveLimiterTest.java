@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Driven by a clock of its own, so each window closes exactly when the
+ * test says.
+ *
+ * @version $Revision$ $Date$
+ */
+public class AdaptiveLimiterTest {
+
+    private long clock;
+
+    private final AdaptiveLimiter limiter = limiter(100);
+
+    @Test
+    public void shrinksWhenLatencyRisesAndGrowsBackWhenItFalls() {
+        for (int i = 0; i < 3; i++) {
+            window(10, 0);
+        }
+        assertEquals(100, limiter.getLimit());
+
+        int previous = limiter.getLimit();
+        for (int i = 0; i < 5; i++) {
+            window(40, 0);
+            assertTrue(limiter.getLimit() + " after " + previous, limiter.getLimit() < previous);
+            previous = limiter.getLimit();
+        }
+
+        // Idle, there is no telling whether more would do
+        window(10, 0);
+        assertEquals(previous, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            window(10, limiter.getLimit() - 1);
+        }
+        assertEquals(100, limiter.getLimit());
+    }
+
+    @Test
+    public void neverBelowOne() {
+        for (int i = 0; i < 200; i++) {
+            window(10000, 0);
+            assertTrue(limiter.getLimit() >= 1);
+        }
+
+        final AdaptiveLimiter single = limiter(1);
+        for (int i = 0; i < 20; i++) {
+            clock += TimeUnit.MILLISECONDS.toNanos(AdaptiveLimiter.WINDOW_MILLIS);
+            for (int j = 0; j < AdaptiveLimiter.MIN_SAMPLES; j++) {
+                assertTrue(single.acquire());
+                assertFalse(single.acquire());
+                single.release(clock - TimeUnit.SECONDS.toNanos(10));
+            }
+        }
+        assertEquals(1, single.getLimit());
+        assertEquals(200, single.getShed());
+    }
+
+    @Test
+    public void inflightNeverExceedsTheLimitAndReturnsToZero() throws Exception {
+        final AdaptiveLimiter bounded = limiter(4);
+        final AtomicInteger acquired = new AtomicInteger();
+        final AtomicInteger over = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+
+        for (int t = 0; t < 8; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        if (!bounded.acquire()) continue;
+
+                        acquired.incrementAndGet();
+                        if (bounded.getInflight() > 4) over.incrementAndGet();
+                        bounded.release(clock);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, over.get());
+        assertEquals(0, bounded.getInflight());
+        assertEquals(80000, acquired.get() + bounded.getShed());
+    }
+
+    /**
+     * Closes one window of samples taking latencyMillis each, while busy
+     * more calls are in flight.
+     */
+    private void window(long latencyMillis, int busy) {
+        clock += TimeUnit.MILLISECONDS.toNanos(AdaptiveLimiter.WINDOW_MILLIS);
+        final long start = clock - TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+
+        for (int i = 0; i < busy; i++) {
+            assertTrue(limiter.acquire());
+        }
+        for (int i = 0; i < AdaptiveLimiter.MIN_SAMPLES; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(start);
+        }
+        for (int i = 0; i < busy; i++) {
+            limiter.release(start);
+        }
+    }
+
+    private AdaptiveLimiter limiter(int maxLimit) {
+        return new AdaptiveLimiter(maxLimit) {
+            @Override
+            long nanoTime() {
+                return clock;
+            }
+        };
+    }
+}
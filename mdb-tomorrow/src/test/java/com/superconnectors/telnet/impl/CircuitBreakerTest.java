@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterFailuresInARow() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(3, 60000);
+
+        for (int i = 0; i < 2; i++) {
+            assertFalse(breaker.acquire("cmd"));
+            breaker.failure(false);
+        }
+        breaker.success(false);
+        assertEquals("closed", breaker.getState());
+
+        for (int i = 0; i < 3; i++) {
+            breaker.acquire("cmd");
+            breaker.failure(false);
+        }
+        assertEquals("open", breaker.getState());
+        assertEquals(1, breaker.getOpened());
+
+        try {
+            breaker.acquire("cmd");
+            fail("expected the breaker to be open");
+        } catch (CircuitBreaker.OpenException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("cmd: failing, try again in "));
+            assertEquals(0, e.getStackTrace().length);
+        }
+        assertEquals(1, breaker.getRejected());
+    }
+
+    @Test
+    public void oneTrialAfterTheOpenTime() throws Exception {
+        final CircuitBreaker breaker = open(new CircuitBreaker(1, 1));
+        Thread.sleep(5);
+
+        assertTrue(breaker.acquire("cmd"));
+        assertEquals("half-open", breaker.getState());
+        assertRejected(breaker);
+
+        breaker.success(true);
+        assertEquals("closed", breaker.getState());
+        assertFalse(breaker.acquire("cmd"));
+    }
+
+    @Test
+    public void failedTrialOpensAgain() throws Exception {
+        final CircuitBreaker breaker = open(new CircuitBreaker(1, 1));
+        Thread.sleep(5);
+
+        assertTrue(breaker.acquire("cmd"));
+        breaker.failure(true);
+        assertEquals("open", breaker.getState());
+        assertEquals(2, breaker.getOpened());
+    }
+
+    @Test
+    public void ignoredTrialHandsTheTrialOn() throws Exception {
+        final CircuitBreaker breaker = open(new CircuitBreaker(1, 1));
+        Thread.sleep(5);
+
+        assertTrue(breaker.acquire("cmd"));
+        breaker.ignore(true);
+        assertEquals("open", breaker.getState());
+
+        assertTrue(breaker.acquire("cmd"));
+    }
+
+    @Test
+    public void ignoredCallsDoNotCount() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 60000);
+        for (int i = 0; i < 10; i++) {
+            breaker.acquire("cmd");
+            breaker.ignore(false);
+        }
+        assertEquals("closed", breaker.getState());
+    }
+
+    @Test
+    public void zeroThresholdNeverOpens() throws Exception {
+        final CircuitBreaker breaker = new CircuitBreaker(0, 60000);
+        assertFalse(breaker.isEnabled());
+        for (int i = 0; i < 10; i++) {
+            breaker.acquire("cmd");
+            breaker.failure(false);
+        }
+        assertEquals("closed", breaker.getState());
+    }
+
+    @Test
+    public void badArgumentsAndCancelsDoNotOpenIt() throws Throwable {
+        final Cmd cmd = new Cmd("fail", Beans.class.getMethod("fail", int.class));
+        cmd.setBreaker(new CircuitBreaker(1, 60000));
+
+        try {
+            cmd.call(new Beans(), new String[]{"x"});
+            fail("expected the argument to be rejected");
+        } catch (Converters.InvalidArgumentException e) {
+            assertTrue(e.getCause() instanceof NumberFormatException);
+        }
+        assertEquals("closed", cmd.getBreaker().getState());
+
+        try {
+            cmd.call(new Beans(), new String[]{"1"});
+            fail("expected the command to fail");
+        } catch (IllegalStateException e) {
+            assertEquals("1", e.getMessage());
+        }
+        assertEquals("open", cmd.getBreaker().getState());
+    }
+
+    private static CircuitBreaker open(CircuitBreaker breaker) throws Exception {
+        breaker.acquire("cmd");
+        breaker.failure(false);
+        assertEquals("open", breaker.getState());
+        return breaker;
+    }
+
+    private static void assertRejected(CircuitBreaker breaker) {
+        try {
+            breaker.acquire("cmd");
+            fail("expected the call to be rejected");
+        } catch (CircuitBreaker.OpenException e) {
+            // expected
+        }
+    }
+
+    public static class Beans {
+        public String fail(int code) {
+            throw new IllegalStateException(String.valueOf(code));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class CommandTableTest {
+
+    private final CommandTable table = new CommandTable(cmds("set", "settings", "get", "list", "help"));
+
+    @Test
+    public void exactNames() {
+        for (String name : new String[]{"set", "settings", "get", "list", "help"}) {
+            assertEquals(name, table.find(name).getName());
+        }
+    }
+
+    @Test
+    public void uniquePrefixes() {
+        assertEquals("get", table.find("g").getName());
+        assertEquals("list", table.find("li").getName());
+        assertEquals("settings", table.find("sett").getName());
+    }
+
+    @Test
+    public void exactNameWinsOverLongerNames() {
+        assertEquals("set", table.find("set").getName());
+    }
+
+    @Test
+    public void unknownOrAmbiguous() {
+        assertNull(table.find("s"));
+        assertNull(table.find("se"));
+        assertNull(table.find("sets"));
+        assertNull(table.find("x"));
+        assertNull(table.find(""));
+    }
+
+    @Test
+    public void charRange() {
+        final char[] line = "  get --key".toCharArray();
+        assertEquals("get", table.find(line, 2, 5).getName());
+        assertNull(table.find(line, 2, 2));
+    }
+
+    @Test
+    public void candidates() {
+        assertEquals(Arrays.asList("set", "settings"), names(table.candidates("se".toCharArray(), 0, 2)));
+        assertTrue(table.candidates("zz".toCharArray(), 0, 2).isEmpty());
+    }
+
+    private static List<Cmd> cmds(String... names) {
+        final List<Cmd> cmds = new ArrayList<Cmd>();
+        for (String name : names) {
+            try {
+                cmds.add(new Cmd(name, Object.class.getMethod("toString")));
+            } catch (NoSuchMethodException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return cmds;
+    }
+
+    private static List<String> names(List<Cmd> cmds) {
+        final List<String> names = new ArrayList<String>();
+        for (Cmd cmd : cmds) {
+            names.add(cmd.getName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ConvertersTest {
+
+    private final Converters converters = new Converters(getClass().getClassLoader());
+
+    @Test
+    public void integersDecodeLikeTheEditors() throws Throwable {
+        final MethodHandle toInt = converters.find(int.class);
+        assertEquals(42, (int) toInt.invokeExact("42"));
+        assertEquals(-7, (int) toInt.invokeExact("-7"));
+        assertEquals(0, (int) toInt.invokeExact("0"));
+        assertEquals(31, (int) toInt.invokeExact("0x1F"));
+        assertEquals(31, (int) toInt.invokeExact("#1F"));
+        assertEquals(15, (int) toInt.invokeExact("017"));
+        assertEquals(-16, (int) toInt.invokeExact("-0x10"));
+
+        assertEquals(Long.valueOf(255), converters.find(Long.class).invoke("0xff"));
+        assertEquals((short) 8, (short) converters.find(short.class).invokeExact("010"));
+    }
+
+    @Test
+    public void booleansMustBeTrueOrFalse() throws Throwable {
+        final MethodHandle toBoolean = converters.find(boolean.class);
+        assertEquals(true, (boolean) toBoolean.invokeExact("TRUE"));
+        assertEquals(false, (boolean) toBoolean.invokeExact("false"));
+        rejected(boolean.class, "yes");
+        rejected(Boolean.class, "0");
+    }
+
+    @Test
+    public void badArgumentsAreRejected() throws Throwable {
+        rejected(int.class, "4x");
+        rejected(int.class, "");
+        rejected(int.class, "08");
+        rejected(double.class, "pi");
+        rejected(Pattern.class, "(a+)+");
+    }
+
+    @Test
+    public void missingArgumentsAreNull() throws Throwable {
+        assertNull(converters.find(Integer.class).invoke((String) null));
+        assertNull(converters.find(String.class).invoke((String) null));
+    }
+
+    private void rejected(Class<?> type, String text) throws Throwable {
+        try {
+            converters.find(type).invoke(text);
+            fail("converted '" + text + "' to " + type);
+        } catch (Converters.InvalidArgumentException e) {
+            // expected
+        }
+    }
+}
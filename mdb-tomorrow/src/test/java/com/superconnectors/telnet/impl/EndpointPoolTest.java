@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import com.superconnectors.telnet.api.TelnetListener;
+import org.junit.Test;
+
+import javax.resource.spi.endpoint.MessageEndpoint;
+import javax.resource.spi.endpoint.MessageEndpointFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class EndpointPoolTest {
+
+    private final AtomicInteger released = new AtomicInteger();
+
+    @Test
+    public void idleEndpointsAboveMinAreReleased() throws Exception {
+        final EndpointPool pool = new EndpointPool(factory(), 1, 0, 0, 10);
+        pool.warm();
+
+        final List<TelnetListener> sessions = new ArrayList<TelnetListener>();
+        for (int i = 0; i < 4; i++) {
+            sessions.add(pool.acquire());
+        }
+        for (TelnetListener session : sessions) {
+            pool.release(session);
+        }
+        assertEquals(4, pool.getCreated());
+
+        // Not idle long enough yet
+        pool.evictIdle();
+        assertEquals(4, pool.getIdle());
+
+        Thread.sleep(20);
+        pool.release(pool.acquire());
+        pool.evictIdle();
+
+        // The one just returned is kept, as the minimum
+        assertEquals(1, pool.getCreated());
+        assertEquals(1, pool.getIdle());
+        assertEquals(3, pool.getEvicted());
+        assertEquals(3, released.get());
+    }
+
+    @Test
+    public void minEndpointsAreKept() throws Exception {
+        final EndpointPool pool = new EndpointPool(factory(), 2, 0, 0, 1);
+        pool.warm();
+
+        Thread.sleep(10);
+        pool.evictIdle();
+
+        assertEquals(2, pool.getCreated());
+        assertEquals(0, pool.getEvicted());
+    }
+
+    private MessageEndpointFactory factory() {
+        return (MessageEndpointFactory) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MessageEndpointFactory.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("createEndpoint".equals(method.getName())) return endpoint();
+                return null;
+            }
+        });
+    }
+
+    private MessageEndpoint endpoint() {
+        return (MessageEndpoint) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MessageEndpoint.class, TelnetListener.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("release".equals(method.getName())) released.incrementAndGet();
+                if ("equals".equals(method.getName())) return proxy == args[0];
+                if ("hashCode".equals(method.getName())) return System.identityHashCode(proxy);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class FailuresTest {
+
+    @Test
+    public void codes() {
+        assertEquals("ERR BUSY get: busy", Failures.describe(new Bulkhead.BusyException("get: busy")));
+        assertEquals("ERR TIMEOUT get: timed out", Failures.describe(new Deadline.ExpiredException("get: timed out", false)));
+        assertEquals("ERR CANCELLED get: cancelled", Failures.describe(new Deadline.ExpiredException("get: cancelled", true)));
+        assertEquals("ERR UNAVAILABLE get: failing", Failures.describe(new CircuitBreaker.OpenException("get: failing")));
+        assertEquals("ERR BAD_ARGUMENT no", Failures.describe(new Converters.InvalidArgumentException("no", null)));
+    }
+
+    @Test
+    public void commandFailuresKeepTheFirstLine() {
+        assertEquals("ERR FAILED java.lang.IllegalStateException: first", Failures.describe(new IllegalStateException("first\nsecond")));
+    }
+
+    @Test
+    public void tracesAreSampled() {
+        final long logged = Failures.getLogged();
+        final long suppressed = Failures.getSuppressed();
+
+        for (int i = 0; i < 10; i++) {
+            Failures.describe(new SampledException());
+        }
+
+        assertEquals(logged + 1, Failures.getLogged());
+        assertEquals(suppressed + 9, Failures.getSuppressed());
+    }
+
+    private static class SampledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+}
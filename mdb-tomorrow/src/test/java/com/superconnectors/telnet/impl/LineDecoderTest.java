@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class LineDecoderTest {
+
+    @Test
+    public void endsOfLine() throws Exception {
+        final LineDecoder lines = new LineDecoder(100);
+        final InputStream in = stream("crlf\r\ncrnul\r\0cr\rlf\nlast\r\n");
+
+        assertEquals("crlf", lines.readLine(in).toString());
+        assertEquals("crnul", lines.readLine(in).toString());
+        assertEquals("cr", lines.readLine(in).toString());
+        assertEquals("lf", lines.readLine(in).toString());
+        assertEquals("last", lines.readLine(in).toString());
+        assertNull(lines.readLine(in));
+    }
+
+    @Test
+    public void lastLineWithoutEndOfLine() throws Exception {
+        final LineDecoder lines = new LineDecoder(100);
+        final InputStream in = stream("one\r\ntwo");
+
+        assertEquals("one", lines.readLine(in).toString());
+        assertEquals("two", lines.readLine(in).toString());
+        assertNull(lines.readLine(in));
+    }
+
+    @Test
+    public void splitAcrossBuffers() throws Exception {
+        final LineDecoder lines = new LineDecoder(100);
+
+        assertFalse(lines.decode(buffer("hel")));
+        final ByteBuffer rest = buffer("lo\r");
+        assertTrue(lines.decode(rest));
+        assertEquals("hello", lines.toString());
+
+        // The LF of a CR LF in the next buffer doesn't end an empty line
+        final ByteBuffer next = buffer("\nworld\n");
+        assertTrue(lines.decode(next));
+        assertEquals("world", lines.toString());
+        assertFalse(next.hasRemaining());
+    }
+
+    @Test
+    public void tooLong() throws Exception {
+        final LineDecoder lines = new LineDecoder(4);
+        final InputStream in = stream("12345\r\nok\r\n123456");
+
+        try {
+            lines.readLine(in);
+            fail("no LineTooLongException");
+        } catch (LineDecoder.LineTooLongException e) {
+            // expected
+        }
+        assertEquals("ok", lines.readLine(in).toString());
+
+        try {
+            lines.readLine(in);
+            fail("no LineTooLongException at end of stream");
+        } catch (LineDecoder.LineTooLongException e) {
+            // expected
+        }
+        assertNull(lines.readLine(in));
+    }
+
+    @Test
+    public void hasLine() throws Exception {
+        final LineDecoder lines = new LineDecoder(100);
+        final InputStream in = stream("a\r\nb\r\nc");
+
+        assertEquals("a", lines.readLine(in).toString());
+        assertTrue(lines.hasLine());
+        assertEquals("b", lines.readLine(in).toString());
+        assertFalse(lines.hasLine());
+    }
+
+    @Test
+    public void hasLineBeyondTheReadAhead() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append("line ").append(i).append("\r\n");
+        }
+        for (int i = 0; i < 1500; i++) {
+            text.append('x');
+        }
+        text.append("\r\nlast\r\n");
+
+        final LineDecoder lines = new LineDecoder(4096);
+        final InputStream in = stream(text.toString());
+
+        assertEquals("line 0", lines.readLine(in).toString());
+        for (int i = 1; i < 300; i++) {
+            assertTrue(lines.hasLine(in));
+            assertEquals("line " + i, lines.readLine(in).toString());
+        }
+
+        assertTrue(lines.hasLine(in));
+        assertEquals(1500, lines.readLine(in).length());
+        assertTrue(lines.hasLine(in));
+        assertEquals("last", lines.readLine(in).toString());
+        assertFalse(lines.hasLine(in));
+    }
+
+    @Test
+    public void noLineWhileTheRestIsIncomplete() throws Exception {
+        final StringBuilder text = new StringBuilder("a\r\n");
+        for (int i = 0; i < 2000; i++) {
+            text.append('x');
+        }
+
+        final LineDecoder lines = new LineDecoder(4096);
+        final InputStream in = stream(text.toString());
+
+        assertEquals("a", lines.readLine(in).toString());
+        assertFalse(lines.hasLine(in));
+        assertEquals(2000, lines.readLine(in).length());
+    }
+
+    private static InputStream stream(String text) throws Exception {
+        return new ByteArrayInputStream(text.getBytes("ISO-8859-1"));
+    }
+
+    private static ByteBuffer buffer(String text) throws Exception {
+        return ByteBuffer.wrap(text.getBytes("ISO-8859-1"));
+    }
+}
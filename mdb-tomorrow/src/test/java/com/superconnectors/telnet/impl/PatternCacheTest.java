@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class PatternCacheTest {
+
+    private final PatternCache cache = new PatternCache(4, 40);
+
+    @Test
+    public void accepts() {
+        cache.compile("\\d+");
+        cache.compile("a+b*c{2,}");
+        cache.compile("(ab)+");
+        cache.compile("(a{2})+");
+        cache.compile("foo|bar");
+        cache.compile("(foo|bar)");
+        cache.compile("(foo|bar)?");
+        cache.compile("[(a+)]+");
+        cache.compile("\\(a+\\)+");
+        assertEquals(0, cache.getRejected());
+    }
+
+    @Test
+    public void rejectsNestedQuantifiers() {
+        rejected("(a+)+");
+        rejected("(a*)*b");
+        rejected("(a{1,})+");
+        rejected("((a+)b)*");
+    }
+
+    @Test
+    public void rejectsQuantifiedAlternation() {
+        rejected("(a|aa)+b");
+        rejected("(a|a)*");
+        rejected("((a|aa))+");
+        rejected("(?:x|y){2,}");
+    }
+
+    @Test
+    public void rejectsLongPatterns() {
+        rejected("0123456789012345678901234567890123456789x");
+
+        final PatternCache small = new PatternCache(4, 4);
+        try {
+            small.compile("abcdef");
+            fail("accepted");
+        } catch (PatternSyntaxException e) {
+            assertEquals("abcdef...", e.getPattern());
+        }
+    }
+
+    @Test
+    public void caches() {
+        assertSame(cache.compile("a+"), cache.compile("a+"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        for (int i = 0; i < 8; i++) {
+            cache.compile("x" + i);
+        }
+        assertTrue(cache.size() <= 4);
+        assertTrue(cache.getEvictions() > 0);
+    }
+
+    private void rejected(String regex) {
+        final long before = cache.getRejected();
+        try {
+            cache.compile(regex);
+            fail("accepted " + regex);
+        } catch (PatternSyntaxException e) {
+            assertEquals(before + 1, cache.getRejected());
+        }
+    }
+}
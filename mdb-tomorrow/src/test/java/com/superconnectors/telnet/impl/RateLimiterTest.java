@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import com.superconnectors.telnet.adapter.TelnetActivationSpec;
+import com.superconnectors.telnet.api.Command;
+import com.superconnectors.telnet.api.Option;
+import com.superconnectors.telnet.api.TelnetListener;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class RateLimiterTest {
+
+    private static final Map<String, Integer> NONE = Collections.emptyMap();
+
+    private static final Executor CALLER = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void burstThenLimited() {
+        final RateLimiter limiter = new RateLimiter(10, 5, NONE);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, limiter.acquire("10.0.0.1", "get"));
+        }
+
+        final long wait = limiter.acquire("10.0.0.1", "get");
+        assertTrue(String.valueOf(wait), wait > 0 && wait <= 100);
+        assertEquals(1, limiter.getLimited());
+    }
+
+    @Test
+    public void addressesAreLimitedApart() {
+        final RateLimiter limiter = new RateLimiter(1, 1, NONE);
+
+        assertEquals(0, limiter.acquire("10.0.0.1", "get"));
+        assertTrue(limiter.acquire("10.0.0.1", "get") > 0);
+        assertEquals(0, limiter.acquire("10.0.0.2", "get"));
+    }
+
+    @Test
+    public void perCommand() {
+        final RateLimiter limiter = new RateLimiter(0, 0, RateLimiter.parse("get=2"));
+        assertTrue(limiter.isEnabled());
+
+        assertEquals(0, limiter.acquire("10.0.0.1", "get"));
+        assertEquals(0, limiter.acquire("10.0.0.1", "get"));
+        assertTrue(limiter.acquire("10.0.0.1", "get") > 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, limiter.acquire("10.0.0.1", "set"));
+        }
+    }
+
+    @Test
+    public void disabled() {
+        assertFalse(new RateLimiter(0, 0, NONE).isEnabled());
+    }
+
+    @Test
+    public void refilledBucketsAreEvicted() throws Exception {
+        final RateLimiter limiter = new RateLimiter(1000, 1, NONE);
+
+        limiter.acquire("10.0.0.1", "get");
+        limiter.acquire("10.0.0.2", "get");
+        assertEquals(2, limiter.size());
+
+        Thread.sleep(20);
+        limiter.evictIdle();
+
+        assertEquals(0, limiter.size());
+        assertEquals(2, limiter.getEvicted());
+    }
+
+    @Test
+    public void parse() {
+        final Map<String, Integer> rates = RateLimiter.parse(" get = 3 , set=4");
+        assertEquals(2, rates.size());
+        assertEquals(Integer.valueOf(3), rates.get("get"));
+        assertEquals(Integer.valueOf(4), rates.get("set"));
+
+        assertTrue(RateLimiter.parse(null).isEmpty());
+        assertTrue(RateLimiter.parse(" ").isEmpty());
+
+        for (String bad : new String[]{"get", "get=x", "get=0"}) {
+            try {
+                RateLimiter.parse(bad);
+                fail("parsed " + bad);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void batchesOpenAndCloseUnderATightLimit() throws Exception {
+        final TelnetActivationSpec spec = new TelnetActivationSpec();
+        spec.setBeanClass(Echo.class);
+        spec.setRateLimit(1);
+        spec.setRateBurst(1);
+        spec.validate();
+
+        final TelnetServer server = new TelnetServer(spec, new Echo(), 0);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new TelnetPrintStream(bytes);
+        final SessionContext session = new SessionContext(new Echo(), new ResponseSequencer(1, CALLER, null, CALLER) {
+            @Override
+            protected void deliver(byte[] response) {
+                out.write(response, 0, response.length);
+            }
+        });
+        session.setRemoteAddress("10.0.0.1");
+
+        // Only the queued command takes the one token there is
+        for (String line : new String[]{"begin", "echo a", "commit", "begin", "abort"}) {
+            server.dispatch(line, session, out);
+        }
+        out.flush();
+
+        final String output = bytes.toString();
+        assertFalse(output, output.contains(Failures.RATE_LIMITED));
+        assertTrue(output, output.contains("queued 1"));
+        assertTrue(output, output.contains("discarded 0 commands"));
+
+        server.dispatch("echo b", session, out);
+        out.flush();
+        assertTrue(bytes.toString().contains(Failures.RATE_LIMITED));
+    }
+
+    public static class Echo implements TelnetListener {
+
+        @Command("echo")
+        public String echo(@Option("text") String text) {
+            return text;
+        }
+    }
+}
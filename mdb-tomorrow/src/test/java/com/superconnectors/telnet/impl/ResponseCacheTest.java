@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A capacity of one makes a single segment holding one probationary and
+ * one protected entry.
+ *
+ * @version $Revision$ $Date$
+ */
+public class ResponseCacheTest {
+
+    private static final long TTL = 60000;
+
+    private final ResponseCache cache = new ResponseCache(1);
+
+    @Test
+    public void secondHitIsProtected() {
+        put("a");
+        assertArrayEquals(bytes("a"), cache.get("get", "a"));
+
+        // A scan of one-off keys only evicts other one-off keys
+        put("b");
+        put("c");
+        assertNull(cache.get("get", "b"));
+        assertArrayEquals(bytes("a"), cache.get("get", "a"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void leastRecentlyUsedIsEvictedFirst() {
+        put("a");
+        put("b");
+        assertNull(cache.get("get", "a"));
+        assertArrayEquals(bytes("b"), cache.get("get", "b"));
+
+        // Promoting c demotes b, which pushes out the probationary d
+        put("d");
+        put("c");
+        assertArrayEquals(bytes("c"), cache.get("get", "c"));
+        assertArrayEquals(bytes("b"), cache.get("get", "b"));
+        assertNull(cache.get("get", "d"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void invalidatingDropsEveryResponseOfTheCommand() {
+        put("a");
+        cache.put("list", "x", cache.generation("list"), bytes("x"), TTL);
+
+        cache.invalidate("get");
+        assertNull(cache.get("get", "a"));
+        assertArrayEquals(bytes("x"), cache.get("list", "x"));
+    }
+
+    @Test
+    public void responseComputedWhileInvalidatedIsNotServed() {
+        final long generation = cache.generation("get");
+        cache.invalidate("get");
+        cache.put("get", "a", generation, bytes("a"), TTL);
+
+        assertNull(cache.get("get", "a"));
+    }
+
+    @Test
+    public void expired() throws Exception {
+        cache.put("get", "a", cache.generation("get"), bytes("a"), 1);
+        Thread.sleep(5);
+        assertNull(cache.get("get", "a"));
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void argumentsDoNotRunTogether() {
+        final String joined = ResponseCache.key("get", new String[]{"a", "b"});
+
+        assertFalse(joined.equals(ResponseCache.key("get", new String[]{"a\0b"})));
+        assertFalse(joined.equals(ResponseCache.key("get", new String[]{"a b"})));
+        assertFalse(joined.equals(ResponseCache.key("get", new String[]{"a", "", "b"})));
+        assertFalse(ResponseCache.key("get", new String[]{"1:a"}).equals(ResponseCache.key("get", new String[]{"", "a"})));
+        assertEquals(joined, ResponseCache.key("get", new String[]{"a", "b"}));
+    }
+
+    private void put(String key) {
+        cache.put("get", key, cache.generation("get"), bytes(key), TTL);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes();
+    }
+}
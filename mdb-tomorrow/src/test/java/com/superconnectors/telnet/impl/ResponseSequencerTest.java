@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ResponseSequencerTest {
+
+    private static final Executor CALLER = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final TimingWheel wheel = new TimingWheel(10, 64);
+
+    private final AtomicInteger waited = new AtomicInteger();
+
+    private final List<String> delivered = new ArrayList<String>();
+
+    private final ResponseSequencer responses = new ResponseSequencer(100, new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            waited.incrementAndGet();
+            command.run();
+        }
+    }, wheel, CALLER) {
+        @Override
+        protected void deliver(byte[] response) {
+            synchronized (delivered) {
+                delivered.add(new String(response).trim());
+                delivered.notifyAll();
+            }
+        }
+    };
+
+    @Before
+    public void start() {
+        new Thread(wheel).start();
+    }
+
+    @After
+    public void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    public void futuresTakeNoThreadWhilePending() throws Exception {
+        final List<FutureTask<String>> futures = new ArrayList<FutureTask<String>>();
+        for (int i = 0; i < 50; i++) {
+            final String value = "r" + i;
+            final FutureTask<String> future = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() {
+                    return value;
+                }
+            });
+            futures.add(future);
+
+            assertTrue(responses.reserve());
+            responses.submit(future);
+        }
+
+        Thread.sleep(100);
+        assertEquals(0, waited.get());
+        assertEquals(0, delivered.size());
+
+        // Done last to first, delivered first to last
+        for (int i = futures.size() - 1; i >= 0; i--) {
+            futures.get(i).run();
+        }
+
+        await(50);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("r" + i, delivered.get(i));
+        }
+        assertEquals(50, waited.get());
+        assertEquals(0, responses.getOutstanding());
+    }
+
+    @Test
+    public void doneFutureIsDeliveredStraightAway() throws Exception {
+        final FutureTask<String> future = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return "now";
+            }
+        });
+        future.run();
+
+        assertTrue(responses.reserve());
+        responses.submit(future);
+
+        assertEquals(1, delivered.size());
+        assertEquals("now", delivered.get(0));
+        assertEquals(0, waited.get());
+    }
+
+    @Test
+    public void onlyAsynchronousResultsCountAgainstTheLimit() throws Exception {
+        for (int i = 0; i < 150; i++) {
+            responses.expect();
+        }
+        assertEquals(0, responses.getOutstanding());
+
+        final FutureTask<String> future = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                return "later";
+            }
+        });
+        for (int i = 0; i < 100; i++) {
+            responses.acquire();
+        }
+        responses.submit(future);
+        for (int i = 1; i < 100; i++) {
+            responses.expect(true);
+        }
+        assertTrue(responses.isFull());
+
+        future.run();
+        assertTrue(awaitOutstanding(99));
+        assertFalse(responses.isFull());
+    }
+
+    private boolean awaitOutstanding(int outstanding) throws InterruptedException {
+        final long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (responses.getOutstanding() != outstanding && System.nanoTime() < until) {
+            Thread.sleep(10);
+        }
+        return responses.getOutstanding() == outstanding;
+    }
+
+    private void await(int count) throws InterruptedException {
+        final long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        synchronized (delivered) {
+            while (delivered.size() < count && System.nanoTime() < until) {
+                delivered.wait(100);
+            }
+        }
+    }
+}
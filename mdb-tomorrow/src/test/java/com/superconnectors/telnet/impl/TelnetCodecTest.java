@@ -0,0 +1,125 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class TelnetCodecTest implements TelnetCodes {
+
+    private final ByteArrayOutputStream replies = new ByteArrayOutputStream();
+
+    private final AtomicInteger interrupts = new AtomicInteger();
+
+    private final TelnetCodec codec = new TelnetCodec(replies, new Runnable() {
+        @Override
+        public void run() {
+            interrupts.incrementAndGet();
+        }
+    });
+
+    @Test
+    public void plainData() throws Exception {
+        assertEquals("hello\r\n", decode('h', 'e', 'l', 'l', 'o', '\r', '\n'));
+        assertEquals(0, replies.size());
+    }
+
+    @Test
+    public void escapedIac() throws Exception {
+        assertArrayEquals(new byte[]{'a', (byte) IAC, 'b'}, decodeBytes('a', IAC, IAC, 'b'));
+    }
+
+    @Test
+    public void refusesOptions() throws Exception {
+        assertEquals("ab", decode('a', IAC, DO, 1, 'b'));
+        assertArrayEquals(new byte[]{(byte) IAC, (byte) WONT, 1}, replies.toByteArray());
+
+        replies.reset();
+        assertEquals("", decode(IAC, WILL, 3));
+        assertArrayEquals(new byte[]{(byte) IAC, (byte) DONT, 3}, replies.toByteArray());
+    }
+
+    @Test
+    public void answersOnlyOnce() throws Exception {
+        decode(IAC, DO, 1);
+        replies.reset();
+        decode(IAC, DO, 1);
+        assertEquals(0, replies.size());
+    }
+
+    @Test
+    public void interruptProcess() throws Exception {
+        assertEquals("xy", decode('x', IAC, Interrupt_Process, 'y'));
+        assertEquals(1, interrupts.get());
+    }
+
+    @Test
+    public void subnegotiationIsSkipped() throws Exception {
+        assertEquals("z", decode(IAC, SB, 24, 0, 'x', IAC, SE, 'z'));
+    }
+
+    @Test
+    public void commandSplitAcrossCalls() throws Exception {
+        assertEquals("a", decode('a', IAC));
+        assertEquals("", decode(DO));
+        assertEquals("b", decode(24, 'b'));
+        assertArrayEquals(new byte[]{(byte) IAC, (byte) WONT, 24}, replies.toByteArray());
+    }
+
+    @Test
+    public void byteBufferLimitMovesBack() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes('#', '#', 'a', IAC, Interrupt_Process, 'b'));
+        buffer.position(2);
+
+        codec.decode(buffer);
+
+        assertEquals(2, buffer.position());
+        assertEquals(4, buffer.limit());
+        assertEquals('a', buffer.get(2));
+        assertEquals('b', buffer.get(3));
+    }
+
+    private String decode(int... input) throws Exception {
+        return new String(decodeBytes(input), "ISO-8859-1");
+    }
+
+    private byte[] decodeBytes(int... input) throws Exception {
+        final byte[] b = bytes(input);
+        final int length = codec.decode(b, 0, b.length);
+
+        final byte[] data = new byte[length];
+        System.arraycopy(b, 0, data, 0, length);
+        return data;
+    }
+
+    private static byte[] bytes(int... input) {
+        final byte[] b = new byte[input.length];
+        for (int i = 0; i < input.length; i++) {
+            b[i] = (byte) input[i];
+        }
+        return b;
+    }
+}
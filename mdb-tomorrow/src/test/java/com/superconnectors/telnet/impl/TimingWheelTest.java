@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class TimingWheelTest {
+
+    private final TimingWheel wheel = new TimingWheel(10, 64);
+
+    @Before
+    public void start() {
+        new Thread(wheel).start();
+    }
+
+    @After
+    public void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    public void runsNoEarlierThanTheDelay() throws Exception {
+        final long start = System.nanoTime();
+        final AtomicLong ran = new AtomicLong();
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        wheel.schedule(new TimingWheel.Task() {
+            @Override
+            public void expire() {
+                ran.set(System.nanoTime());
+                latch.countDown();
+            }
+        }, 50);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(ran.get() - start) >= 50);
+    }
+
+    @Test
+    public void cancelled() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final TimingWheel.Timeout timeout = wheel.schedule(counting(ran, null), 30);
+
+        assertTrue(timeout.cancel());
+        Thread.sleep(100);
+        assertEquals(0, ran.get());
+    }
+
+    @Test
+    public void cancelAfterRunning() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final TimingWheel.Timeout timeout = wheel.schedule(counting(new AtomicInteger(), latch), 0);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void delayLongerThanOneTurn() throws Exception {
+        // One turn of the wheel is 640 ms
+        final AtomicInteger ran = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(counting(ran, latch), 800);
+
+        Thread.sleep(400);
+        assertEquals(0, ran.get());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manyTimeouts() throws Exception {
+        final AtomicInteger ran = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            wheel.schedule(counting(ran, latch), i % 200);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(500, ran.get());
+    }
+
+    private static TimingWheel.Task counting(final AtomicInteger ran, final CountDownLatch latch) {
+        return new TimingWheel.Task() {
+            @Override
+            public void expire() {
+                ran.incrementAndGet();
+                if (latch != null) latch.countDown();
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 David Blevins
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.superconnectors.telnet.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class TokenizerTest {
+
+    private final Tokenizer tokenizer = new Tokenizer();
+
+    private String[] words(String line) {
+        tokenizer.tokenize(line);
+        return tokenizer.tokens(0);
+    }
+
+    @Test
+    public void whitespace() {
+        assertArrayEquals(new String[]{"set", "a", "b"}, words("  set\ta   b "));
+        assertEquals(0, tokenizer.tokenize("   "));
+    }
+
+    @Test
+    public void quotes() {
+        assertArrayEquals(new String[]{"set", "motd", "hello you"}, words("set motd \"hello you\""));
+        assertArrayEquals(new String[]{"set", "motd", "hello you"}, words("set motd 'hello you'"));
+        assertArrayEquals(new String[]{"say", "it's"}, words("say \"it's\""));
+        assertArrayEquals(new String[]{"say", "open ended"}, words("say \"open ended"));
+    }
+
+    @Test
+    public void escapes() {
+        assertArrayEquals(new String[]{"set", "motd", "hello \"you\""}, words("set motd \"hello \\\"you\\\"\""));
+        assertArrayEquals(new String[]{"say", "a b"}, words("say a\\ b"));
+        assertArrayEquals(new String[]{"say", "a\\b"}, words("say a\\\\b"));
+    }
+
+    @Test
+    public void regexBackslashesAreKept() {
+        assertArrayEquals(new String[]{"list", "\\d+"}, words("list \\d+"));
+        assertArrayEquals(new String[]{"list", "a\\.b"}, words("list a\\.b"));
+        assertArrayEquals(new String[]{"list", "\\w+\\s"}, words("list \"\\w+\\s\""));
+        assertArrayEquals(new String[]{"list", "trailing\\"}, words("list trailing\\"));
+    }
+
+    @Test
+    public void singleQuotesTakeBackslashesLiterally() {
+        assertArrayEquals(new String[]{"list", "a\\\"b"}, words("list 'a\\\"b'"));
+    }
+
+    @Test
+    public void buffersGrow() {
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 100; i++) line.append("word").append(i).append(' ');
+
+        assertEquals(100, tokenizer.tokenize(line));
+        assertEquals("word99", tokenizer.token(99));
+    }
+}